@@ -0,0 +1,74 @@
+package bfbc.jiggity.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bfbc.jiggity.compiler.JavaCompilerTool;
+import bfbc.jiggity.compiler.JavaCompilerTool.TargetClassLoader;
+
+/**
+ * Looking up the compiled classes in {@link TargetClassLoader}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoaderBenchmark {
+
+	/**
+	 * The number of the classes in the loader
+	 */
+	@Param({ "10", "1000" })
+	public int classes;
+
+	private TargetClassLoader classLoader;
+	private String className;
+	private String resourceName;
+	private String filePath;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ClassNotFoundException {
+		classLoader = JavaCompilerTool.compile(getClass().getClassLoader(), SyntheticSite.sources(classes, -1, 0));
+		if (classLoader == null) {
+			throw new IllegalStateException("The synthetic sources aren't compiled");
+		}
+		className = "pkg.Class" + (classes / 2);
+		resourceName = "pkg/Class" + (classes / 2) + ".class";
+		filePath = "pkg/Class" + (classes / 2) + ".java";
+		// Defined once, like the scripts of an active commit
+		classLoader.loadClass(className);
+	}
+
+	@Benchmark
+	public Class<?> loadClass() throws ClassNotFoundException {
+		return classLoader.loadClass(className);
+	}
+
+	@Benchmark
+	public int getResourceAsStream() throws IOException {
+		try (InputStream in = classLoader.getResourceAsStream(resourceName)) {
+			return in.available();
+		}
+	}
+
+	@Benchmark
+	public Object classesOf() {
+		return classLoader.classesOf(filePath);
+	}
+}
@@ -0,0 +1,68 @@
+package bfbc.jiggity.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bfbc.jiggity.compiler.JavaCompilerTool;
+import bfbc.jiggity.compiler.JavaCompilerTool.SourceInMemory;
+import bfbc.jiggity.compiler.JavaCompilerTool.TargetClassLoader;
+
+/**
+ * Compiling the sources of a commit: all of them and only a changed one
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompilerBenchmark {
+
+	/**
+	 * The number of the classes compiled
+	 */
+	@Param({ "10", "100", "500" })
+	public int sources;
+
+	private ClassLoader baseClassLoader;
+	private TargetClassLoader previous;
+	private List<SourceInMemory> initial;
+	private int version;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		baseClassLoader = getClass().getClassLoader();
+		initial = SyntheticSite.sources(sources, -1, 0);
+		previous = JavaCompilerTool.compile(baseClassLoader, initial);
+		if (previous == null) {
+			throw new IllegalStateException("The synthetic sources aren't compiled");
+		}
+	}
+
+	@Benchmark
+	public TargetClassLoader fullCompile() {
+		return JavaCompilerTool.compile(baseClassLoader, initial);
+	}
+
+	/**
+	 * One class is changed, the classes of the rest are taken from the previous compilation
+	 */
+	@Benchmark
+	public TargetClassLoader incrementalCompile() {
+		version++;
+		return JavaCompilerTool.compile(baseClassLoader, SyntheticSite.sources(sources, sources / 2, version), previous);
+	}
+}
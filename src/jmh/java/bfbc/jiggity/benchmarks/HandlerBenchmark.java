@@ -0,0 +1,127 @@
+package bfbc.jiggity.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bfbc.jiggity.JiggityHandler;
+import bfbc.jiggity.ScriptExecutor;
+import bfbc.jiggity.StaticContentSender;
+import bfbc.jiggity.cache.BlobCache;
+import bfbc.jiggity.metrics.Metrics;
+
+/**
+ * The requests served by {@link JiggityHandler}. They are sent through a {@link LocalConnector},
+ * so the numbers include the HTTP parsing and the Jetty handling, but no sockets
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+	/**
+	 * The number of the static files of the site
+	 */
+	@Param({ "100", "1000" })
+	public int files;
+
+	private File dir;
+	private Server server;
+	private LocalConnector connector;
+
+	private String staticRequest;
+	private String scriptRequest;
+	private String processorRequest;
+	private String notFoundRequest;
+
+	private static String get(String target) {
+		return "GET " + target + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("jiggity-bench-").toFile();
+		File gitDir = SyntheticSite.createRepo(new File(dir, "site"), files);
+
+		StaticContentSender sender = new StaticContentSender(new BlobCache(64L * 1024 * 1024, 1024L * 1024), true, 256, false);
+		JiggityHandler handler = new JiggityHandler(gitDir, "master", false, 1000, 2, Collections.singletonList(Pattern.compile(".java$")),
+				sender, null, new ScriptExecutor(ScriptExecutor.Mode.CONTAINER, 1), new Metrics(sender.getBlobCache()));
+
+		server = new Server();
+		connector = new LocalConnector(server);
+		server.addConnector(connector);
+		server.setHandler(handler);
+		server.start();
+
+		staticRequest = get("/file-" + (files / 2) + ".html");
+		scriptRequest = get("/Script" + (SyntheticSite.SCRIPTS / 2) + ".java");
+		processorRequest = get("/file-" + (files / 2) + ".txt");
+		notFoundRequest = get("/missing-file.html");
+
+		// Failing early instead of measuring the error pages
+		check(staticRequest, "200 OK");
+		check(scriptRequest, "200 OK");
+		check(processorRequest, "200 OK");
+		check(notFoundRequest, "404 Not Found");
+	}
+
+	private void check(String request, String status) throws Exception {
+		String response = connector.getResponses(request);
+		if (!response.startsWith("HTTP/1.1 " + status)) {
+			throw new IllegalStateException("Unexpected response to " + request.trim() + ":\n" + response);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		server.stop();
+		SyntheticSite.delete(dir);
+	}
+
+	@Benchmark
+	public String staticHit() throws Exception {
+		return connector.getResponses(staticRequest);
+	}
+
+	@Benchmark
+	public String scriptHit() throws Exception {
+		return connector.getResponses(scriptRequest);
+	}
+
+	/**
+	 * The processor matching the target refuses it, so the file is sent as a static one
+	 */
+	@Benchmark
+	public String processorFallthrough() throws Exception {
+		return connector.getResponses(processorRequest);
+	}
+
+	/**
+	 * No file and no processor. The error page is made by the handler
+	 */
+	@Benchmark
+	public String notFound() throws Exception {
+		return connector.getResponses(notFoundRequest);
+	}
+}
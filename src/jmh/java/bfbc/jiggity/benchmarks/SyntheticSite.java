@@ -0,0 +1,127 @@
+package bfbc.jiggity.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+import bfbc.jiggity.compiler.JavaCompilerTool.SourceInMemory;
+
+/**
+ * Generated sites and sources of a given size for the benchmarks
+ */
+public class SyntheticSite {
+
+	public static final int SCRIPTS = 10;
+
+	/**
+	 * Every script prints a line
+	 */
+	private static String script(int i) {
+		return "import java.io.IOException;\n"
+			+ "import javax.servlet.http.*;\n"
+			+ "import bfbc.jiggity.api.JGIScript;\n"
+			+ "import bfbc.jiggity.api.exceptions.*;\n"
+			+ "public class Script" + i + " extends JGIScript {\n"
+			+ "	@Override\n"
+			+ "	public void onExecute(String target, HttpServletRequest request, HttpServletResponse response) throws JGIException {\n"
+			+ "		try {\n"
+			+ "			response.getOutputStream().println(\"script " + i + "\");\n"
+			+ "		} catch (IOException e) {\n"
+			+ "			throw new JGIServerException(JGIServerException.Code.INTERNAL_ERROR, e);\n"
+			+ "		}\n"
+			+ "	}\n"
+			+ "}\n";
+	}
+
+	/**
+	 * The processor is asked about every <code>.txt</code> file and refuses them, so they are sent as the static files
+	 */
+	private static final String DECLINING_PROCESSOR = "import java.io.InputStream;\n"
+			+ "import javax.servlet.http.*;\n"
+			+ "import bfbc.jiggity.api.JGIProcessor;\n"
+			+ "public class Declining extends JGIProcessor {\n"
+			+ "	@Override\n"
+			+ "	public String[] getPatterns() { return new String[] { \"*.txt\" }; }\n"
+			+ "	@Override\n"
+			+ "	public boolean onRequest(String target, InputStream fileStream, HttpServletRequest request, HttpServletResponse response) {\n"
+			+ "		return false;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	private static void write(File dir, String name, String text) throws IOException {
+		Files.write(new File(dir, name).toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Creates a git repo with <code>files</code> html files (<code>/file-N.html</code>), as many text files
+	 * (<code>/file-N.txt</code>), {@link #SCRIPTS} scripts (<code>/ScriptN.java</code>) and a processor
+	 * refusing the text files
+	 * @return The <code>.git</code> directory of the repo
+	 */
+	public static File createRepo(File dir, int files) throws IOException, GitAPIException {
+		dir.mkdirs();
+		try (Git git = Git.init().setDirectory(dir).call()) {
+			StringBuilder content = new StringBuilder();
+			for (int line = 0; line < 50; line++) {
+				content.append("<p>Some static content of the synthetic site, line ").append(line).append("</p>\n");
+			}
+			for (int i = 0; i < files; i++) {
+				write(dir, "file-" + i + ".html", content.toString());
+				write(dir, "file-" + i + ".txt", "text " + i + "\n");
+			}
+			for (int i = 0; i < SCRIPTS; i++) {
+				write(dir, "Script" + i + ".java", script(i));
+			}
+			write(dir, "Declining.java", DECLINING_PROCESSOR);
+
+			git.add().addFilepattern(".").call();
+			git.commit().setMessage("synthetic site").call();
+		}
+		return new File(dir, ".git");
+	}
+
+	/**
+	 * @param version changes the body of the class <code>changed</code>, so it could be compiled again
+	 * @return <code>count</code> classes depending on a common base class
+	 */
+	public static List<SourceInMemory> sources(int count, int changed, int version) {
+		List<SourceInMemory> sources = new ArrayList<>();
+		sources.add(new SourceInMemory("pkg/Base.java", "package pkg;\npublic class Base {\n	public static int value() { return 1; }\n}\n"));
+		for (int i = 0; i < count; i++) {
+			int added = i == changed ? version : 0;
+			sources.add(new SourceInMemory("pkg/Class" + i + ".java", "package pkg;\n"
+					+ "public class Class" + i + " {\n"
+					+ "	private final java.util.List<String> items = new java.util.ArrayList<String>();\n"
+					+ "	public int value() { return Base.value() + " + i + " + " + added + " + items.size(); }\n"
+					+ "}\n"));
+		}
+		return sources;
+	}
+
+	public static void delete(File dir) throws IOException {
+		if (!dir.exists()) return;
+		Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -4,13 +4,31 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
 
 import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,15 +36,17 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.PathFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,8 +57,11 @@ import bfbc.jiggity.api.exceptions.JGIServerException;
 import bfbc.jiggity.api.exceptions.JGIServerException.Code;
 import bfbc.jiggity.api.JGIExceptionHandler;
 import bfbc.jiggity.api.JGIProcessor;
+import bfbc.jiggity.cache.BlobCache;
+import bfbc.jiggity.compiler.BytecodeCache;
 import bfbc.jiggity.compiler.JavaCompilerTool;
 import bfbc.jiggity.compiler.JavaCompilerTool.TargetClassLoader;
+import bfbc.jiggity.metrics.Metrics;
 
 public class JiggityHandler extends AbstractHandler {
 
@@ -49,13 +72,46 @@ public class JiggityHandler extends AbstractHandler {
 	private boolean allowStash;
 	private List<Pattern> excludePatterns;
 	
-	private class Processors {
-		private Map<Class<? extends JGIScript>, JGIScript> scripts = new HashMap<>();
-		
-		private Map<String, Class<?>> javaClassesForFiles = new HashMap<>();
-	}
+	/**
+	 * The repository is opened once when the handler is started and shared by all the request threads
+	 * (JGit repositories are thread-safe, the object readers are created per request over its shared caches)
+	 */
+	private volatile Repository repository;
+	
+	/**
+	 * The snapshots of the active commit and the previous ones (in the order they have been active),
+	 * so switching back to a recent commit doesn't build it again. Changed only by {@link #activateCommit(ObjectId, boolean)}
+	 */
+	private LinkedHashMap<ObjectId, SiteSnapshot> processorObjects = new LinkedHashMap<>(16, 0.75f, true);
+	private int keepPrevious;
+	
+	/**
+	 * The snapshot the requests are served from. It's replaced by the compiler thread
+	 * only when a new commit is completely built, so the requests never wait for a compilation
+	 */
+	private volatile SiteSnapshot activeSite;
+	
+	private long pollInterval;
+	private volatile RefWatcher refWatcher;
+	private ExecutorService compileExecutor;
+	
+	private static final int SOURCE_READER_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The fewest sources worth a thread of their own
+	 */
+	private static final int SOURCES_PER_READER = 16;
+	private ExecutorService sourceReaderExecutor;
 	
-	private Map<ObjectId, Processors> processorObjects = new HashMap<>();
+	private BlobCache blobCache;
+	private StaticContentSender staticContentSender;
+	private ScriptExecutor scriptExecutor;
+	private Metrics metrics;
+	
+	/**
+	 * The classes compiled before the restart. Could be <code>null</code>
+	 */
+	private BytecodeCache bytecodeCache;
 	
 	private boolean matchExcluded(String path) {
 		for (Pattern p : excludePatterns) {
@@ -76,98 +132,364 @@ public class JiggityHandler extends AbstractHandler {
         return repository;
     }
 
-    private synchronized boolean checkCommitUpdated() throws IOException {
-    	
-	    	try (Repository repository = openRepository()) {
-	
-	    		// find the HEAD
-	            ObjectId lastCommitId = null;
-	            if (allowStash) lastCommitId = repository.resolve("refs/stash");
-	            if (lastCommitId == null) lastCommitId = repository.resolve(revStr);
+    private static JavaCompilerTool.SourceInMemory readSource(ObjectReader reader, String fullName, ObjectId objectId) throws IOException {
+    	ObjectLoader loader = reader.open(objectId, Constants.OBJ_BLOB);
+    	String sourceCode = new String(loader.getBytes());
+    	return new JavaCompilerTool.SourceInMemory(fullName, sourceCode, objectId.getName());
+    }
 
-	            if (lastCommitId == null) {
-	            	throw new IOException("Can't find a commit for \"" + revStr + "\"");
+    /**
+     * Reads the sources in the order of the paths. Many sources are read by several threads,
+     * every one with a reader of its own (the readers aren't thread safe)
+     */
+    private List<JavaCompilerTool.SourceInMemory> readSources(ObjectReader reader, final List<String> paths, final List<ObjectId> ids) throws IOException {
+    	final JavaCompilerTool.SourceInMemory[] res = new JavaCompilerTool.SourceInMemory[paths.size()];
+    	final int parts = Math.min(SOURCE_READER_THREADS, paths.size() / SOURCES_PER_READER);
+    	if (parts <= 1) {
+    		for (int i = 0; i < res.length; i++) {
+    			res[i] = readSource(reader, paths.get(i), ids.get(i));
+    		}
+    		return Arrays.asList(res);
+    	}
+
+    	List<Future<Void>> results = new ArrayList<>();
+    	for (int p = 0; p < parts; p++) {
+    		final int part = p;
+    		results.add(sourceReaderExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					try (ObjectReader partReader = repository.newObjectReader()) {
+						for (int i = part; i < res.length; i += parts) {
+							res[i] = readSource(partReader, paths.get(i), ids.get(i));
+						}
+					}
+					return null;
+				}
+			}));
+    	}
+    	try {
+    		for (Future<Void> result : results) {
+    			result.get();
+    		}
+    	} catch (ExecutionException e) {
+    		if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+    		throw new RuntimeException(e.getCause());
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("Interrupted while reading the sources");
+    	} finally {
+    		for (Future<Void> result : results) {
+    			result.cancel(true);
+    		}
+    	}
+    	return Arrays.asList(res);
+    }
+
+    /**
+     * Indexes the files of the commit, compiles its scripts and instantiates the JGI objects for it.
+     * @param force build the snapshot even if the scripts can't be compiled or instantiated
+     * @param previous the snapshot the unchanged classes are taken from instead of compiling them again. Could be <code>null</code>
+     * @return The snapshot or <code>null</code> if the scripts can't be compiled or instantiated
+     */
+    private SiteSnapshot buildSite(ObjectId lastCommitId, boolean force, SiteSnapshot previous) throws IOException {
+    	boolean failed = false;
+    	long commitTime;
+    	TargetClassLoader compiledSourcesClassLoader;
+    	Map<String, SiteSnapshot.Entry> files = new HashMap<>();
+    	Map<Class<? extends JGIScript>, JGIScript> scripts = new HashMap<>();
+        ArrayList<JavaCompilerTool.SourceInMemory> srcClasses = new ArrayList<>();
+        List<String> sourcePaths = new ArrayList<>();
+        List<ObjectId> sourceIds = new ArrayList<>();
+        
+        // a RevWalk allows to walk over commits based on some filtering that is defined
+        try (ObjectReader reader = repository.newObjectReader(); RevWalk revWalk = new RevWalk(reader)) {
+            RevCommit commit = revWalk.parseCommit(lastCommitId);
+            commitTime = commit.getCommitTime() * 1000L;
+
+            // and using commit's tree find the path
+            RevTree tree = commit.getTree();
+            logger.info("Indexing files and collecting java classes from commit: " + tree.getName());
+
+            try (TreeWalk treeWalk = new TreeWalk(reader)) {
+                treeWalk.addTree(tree);
+                treeWalk.setRecursive(true);
+                
+                while (treeWalk.next()) {
+                	FileMode mode = treeWalk.getFileMode(0);
+                	if (mode.getObjectType() != Constants.OBJ_BLOB) {
+                		// Submodules can't be served
+                		continue;
+                	}
+                	
+                	String fullName = treeWalk.getPathString();
+                	ObjectId objectId = treeWalk.getObjectId(0);
+                	long size = reader.getObjectSize(objectId, Constants.OBJ_BLOB);
+                	files.put(fullName, new SiteSnapshot.Entry(fullName, objectId, size, mode, matchExcluded(fullName), null));
+                	
+                	if (fullName.endsWith(".java")) {
+                		sourcePaths.add(fullName);
+                		sourceIds.add(objectId);
+                    	logger.debug("Adding " + fullName + " to compilation queue");
+                	}
+                }
+            }
+            srcClasses.addAll(readSources(reader, sourcePaths, sourceIds));
+            
+            compiledSourcesClassLoader = null;
+            if (bytecodeCache != null && !srcClasses.isEmpty()) {
+            	compiledSourcesClassLoader = bytecodeCache.load(this.getClass().getClassLoader(), srcClasses);
+            	metrics.bytecodeCacheLookup(compiledSourcesClassLoader != null);
+            	if (compiledSourcesClassLoader != null) {
+            		logger.info("The classes are loaded from the bytecode cache");
+            	}
+            }
+            if (compiledSourcesClassLoader == null) {
+	        	logger.info("Compiling the classes...");
+	            TargetClassLoader previousClassLoader = previous != null ? previous.getClassLoader() : null;
+	            long compileStart = System.nanoTime();
+	            compiledSourcesClassLoader = JavaCompilerTool.compile(this.getClass().getClassLoader(), srcClasses, previousClassLoader);
+	            metrics.compiled(System.nanoTime() - compileStart, compiledSourcesClassLoader != null);
+	            if (compiledSourcesClassLoader != null && bytecodeCache != null && !srcClasses.isEmpty()) {
+	            	bytecodeCache.store(srcClasses, compiledSourcesClassLoader);
 	            }
-	            if (processorObjects.containsKey(lastCommitId)) {
-	            	return true;
-	            } else {
-	            	processorObjects.put(lastCommitId, new Processors());
-	
-		            ArrayList<JavaCompilerTool.SourceInMemory> srcClasses = new ArrayList<>();
-		            
-		            // a RevWalk allows to walk over commits based on some filtering that is defined
-		            try (RevWalk revWalk = new RevWalk(repository)) {
-		                RevCommit commit = revWalk.parseCommit(lastCommitId);
+            }
+            if (compiledSourcesClassLoader != null) {
+            	logger.info("All classes compiled successfully. Instantiating all JGI objects...");
+            	
+            	for (JavaCompilerTool.TargetClassDescriptor tcd : compiledSourcesClassLoader.nameSet()) {
 
-		                // and using commit's tree find the path
-		                RevTree tree = commit.getTree();
-		                logger.info("Collecting java classes from commit: " + tree.getName());
-		
-		                try (TreeWalk treeWalk = new TreeWalk(repository)) {
-		                    treeWalk.addTree(tree);
-		                    treeWalk.setRecursive(true);
-		                    
-		                    while (treeWalk.next()) {
-		                    	ObjectId objectId = treeWalk.getObjectId(0);
-		                    	ObjectLoader loader = repository.open(objectId);
-		                    	
-		                    	String fullName = treeWalk.getPathString();
-		                    	if (fullName.endsWith(".java")) {
-		                    		String sourceCode = new String(loader.getBytes());
-		                            srcClasses.add(new JavaCompilerTool.SourceInMemory(fullName, sourceCode));
-		                        	logger.debug("Adding " + treeWalk.getPathString() + " to compilation queue");
-		                    	}
-		                    }
-		                }
-		                
-		            	logger.info("Compiling the classes...");
-		                TargetClassLoader compiledSourcesClassLoader = JavaCompilerTool.compile(this.getClass().getClassLoader(), srcClasses);
-		                if (compiledSourcesClassLoader != null) {
-		                	logger.info("All classes compiled successfully. Instantiating all JGI objects...");
-		                	processorObjects.get(lastCommitId).scripts.clear();
-		                	
-		                	for (JavaCompilerTool.TargetClassDescriptor tcd : compiledSourcesClassLoader.nameSet()) {
-	
-								try {
-									Class<?> clz = compiledSourcesClassLoader.loadClass(tcd.className.replace('/', '.'));
-		                		
-			                		boolean isJGIScript = false;
-			                		if (JGIScript.class.isAssignableFrom(clz)) isJGIScript = true;
-			                		
-			                		if (isJGIScript) {
-			                			try {
-				                			logger.debug("Class " + tcd.className + " (file " + tcd.filePath + ") is a request processor. Creating an instance for the commit");
-											processorObjects.get(lastCommitId).scripts.put((Class<JGIScript>)clz, (JGIScript)clz.newInstance());
-										} catch (InstantiationException | IllegalAccessException e) {
-											logger.error("Can't instantiate the JGI script object. There is no empty constructor or it is not accessible");
-										}
-			                		}
-			                		
-			                		processorObjects.get(lastCommitId).javaClassesForFiles.put(tcd.filePath, (Class<?>)clz);
-			                		
-								} catch (ClassNotFoundException e1) {
-									logger.warn("Can't load the class " + tcd.className + " (file " + tcd.filePath + "). A very strange bug cause the class has just been compiled");
-									e1.printStackTrace();
+					try {
+						Class<?> clz = compiledSourcesClassLoader.loadClass(tcd.className.replace('/', '.'));
+            		
+                		boolean isJGIScript = false;
+                		if (JGIScript.class.isAssignableFrom(clz) && !Modifier.isAbstract(clz.getModifiers())) isJGIScript = true;
+                		
+                		if (isJGIScript) {
+                			try {
+                    			logger.debug("Class " + tcd.className + " (file " + tcd.filePath + ") is a request processor. Creating an instance for the commit");
+                    			JGIScript script = (JGIScript)clz.newInstance();
+								scripts.put((Class<JGIScript>)clz, script);
+								
+								// Binding the script to the file it is compiled from
+								String filePath = tcd.filePath.startsWith("/") ? tcd.filePath.substring(1) : tcd.filePath;
+								SiteSnapshot.Entry entry = files.get(filePath);
+								if (entry != null && entry.script == null) {
+									files.put(filePath, entry.withScript(script));
 								}
-	
-		                	}
-		                } else {
-		                	logger.error("Compilation failed");
-		                	return false;
-		                }
-		            }
-	            }
-			}
-	    	return true;
+							} catch (InstantiationException | IllegalAccessException e) {
+								logger.error("Can't instantiate the JGI script object. There is no empty constructor or it is not accessible");
+							} catch (RuntimeException | LinkageError e) {
+								logger.error("The constructor of the JGI script object " + tcd.className + " has failed", e);
+								failed = true;
+							}
+                		}
+                		
+					} catch (ClassNotFoundException e1) {
+						logger.warn("Can't load the class " + tcd.className + " (file " + tcd.filePath + "). A very strange bug cause the class has just been compiled", e1);
+					}
+
+            	}
+            } else {
+            	logger.error("Compilation failed");
+            	failed = true;
+            }
+        }
+        
+        // The chains of the processors and the exception handlers are resolved once for the commit
+        List<JGIProcessor> processors = new ArrayList<>();
+        List<JGIExceptionHandler> exceptionHandlers = new ArrayList<>();
+        for (JGIScript script : scripts.values()) {
+        	if (script instanceof JGIProcessor) processors.add((JGIProcessor) script);
+        	if (script instanceof JGIExceptionHandler) exceptionHandlers.add((JGIExceptionHandler) script);
+        }
+        RouteTable routes;
+        try {
+        	routes = new RouteTable(ScriptOrder.sort(processors));
+        	exceptionHandlers = ScriptOrder.sort(exceptionHandlers);
+        } catch (RuntimeException | LinkageError e) {
+        	logger.error("Can't get the priorities or the request patterns of the JGI objects", e);
+        	routes = new RouteTable(new ArrayList<JGIProcessor>());
+        	exceptionHandlers = new ArrayList<>();
+        	failed = true;
+        }
+        
+        if (failed && !force) {
+        	return null;
+        }
+        
+        SiteSnapshot site = new SiteSnapshot(lastCommitId, commitTime, files, scripts, routes,
+        		exceptionHandlers.toArray(new JGIExceptionHandler[exceptionHandlers.size()]), compiledSourcesClassLoader, failed);
+        try (ObjectReader reader = repository.newObjectReader()) {
+        	staticContentSender.precompress(site, reader);
+        }
+    	return site;
+    }
+    
+    /**
+     * Builds the snapshot of the commit (if it isn't built yet) and makes it active.
+     * Runs in the compiler thread (and in the starting thread for the initial commit),
+     * the requests are served from the previous snapshot meanwhile
+     * @param force activate the commit even if its scripts can't be compiled
+     * (at start there is no previous snapshot to serve)
+     */
+    private synchronized void activateCommit(ObjectId lastCommitId, boolean force) throws IOException {
+    	SiteSnapshot active = activeSite;
+    	if (active != null && active.getCommitId().equals(lastCommitId)) return;
+    	long start = System.nanoTime();
+    	
+    	SiteSnapshot site = processorObjects.get(lastCommitId);
+    	if (site == null) {
+    		site = buildSite(lastCommitId, force, active);
+    		if (site == null) {
+    			logger.error("Commit " + lastCommitId.getName() + " is not activated. Still serving commit " + active.getCommitId().getName());
+    			return;
+    		}
+    		// A broken snapshot isn't kept, so the commit is built again when it's switched back to
+    		if (!site.isBroken()) {
+    			processorObjects.put(lastCommitId, site);
+    		}
+    	}
+    	
+        // The commit is published only when it's complete, so the lock-free readers never see it half-built
+    	activeSite = site;
+    	if (active != null && active.isBroken()) {
+    		active.release();
+    	}
+    	metrics.activated(System.nanoTime() - start);
+    	
+    	// The eldest snapshots are released. They are unloaded as soon as the requests still using them are finished
+    	Iterator<SiteSnapshot> it = processorObjects.values().iterator();
+    	while (processorObjects.size() > keepPrevious + 1 && it.hasNext()) {
+    		SiteSnapshot old = it.next();
+    		if (old == site) continue;
+    		it.remove();
+    		logger.debug("Releasing commit " + old.getCommitId().getName());
+    		old.release();
+    	}
+    	
+        logger.info("Commit " + lastCommitId.getName() + " activated. Blob cache: " + blobCache.getCount() + " blobs, " + blobCache.getSize() + " bytes, "
+        		+ blobCache.getHits() + " hits, " + blobCache.getMisses() + " misses, " + blobCache.getEvictions() + " evictions");
     }
     
-    public JiggityHandler(File repoFile, String revStr, boolean allowStash, List<Pattern> excludeMatchers) throws IOException {
+    /**
+     * @param keepPrevious the number of the previously active commits kept loaded besides the active one
+     */
+    public JiggityHandler(File repoFile, String revStr, boolean allowStash, long pollInterval, int keepPrevious, List<Pattern> excludeMatchers, StaticContentSender staticContentSender, BytecodeCache bytecodeCache, ScriptExecutor scriptExecutor, Metrics metrics) {
     	this.repoFile = repoFile;
     	this.revStr = revStr;
     	this.allowStash = allowStash;
+    	this.pollInterval = pollInterval;
+    	this.keepPrevious = keepPrevious;
     	this.excludePatterns = new ArrayList<>(excludeMatchers);
-    	
-    	checkCommitUpdated();
+    	this.staticContentSender = staticContentSender;
+    	this.blobCache = staticContentSender.getBlobCache();
+    	this.bytecodeCache = bytecodeCache;
+    	this.scriptExecutor = scriptExecutor;
+    	this.metrics = metrics;
+    	// Started and stopped with the handler
+    	addBean(scriptExecutor);
+    }
+    
+    @Override
+    protected void doStart() throws Exception {
+    	repository = openRepository();
+    	compileExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jiggity-compiler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+    	sourceReaderExecutor = Executors.newFixedThreadPool(SOURCE_READER_THREADS, new ThreadFactory() {
+    		private final AtomicInteger threadNumber = new AtomicInteger();
+    		
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jiggity-source-reader-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+    	try {
+    		refWatcher = new RefWatcher(repository, revStr, allowStash, pollInterval, new RefWatcher.Listener() {
+				@Override
+				public void onCommitChanged(ObjectId commitId) {
+					compileExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								// The latest commit is taken, the ones pushed while the previous compilation was running are skipped
+								RefWatcher watcher = refWatcher;
+								if (watcher != null) activateCommit(watcher.getCommitId(), false);
+							} catch (Exception e) {
+								logger.error("Can't activate the commit", e);
+							}
+						}
+					});
+				}
+			});
+    		refWatcher.start();
+    		activateCommit(refWatcher.getCommitId(), true);
+    	} catch (Exception e) {
+    		if (refWatcher != null) refWatcher.stop();
+    		refWatcher = null;
+    		compileExecutor.shutdownNow();
+    		compileExecutor = null;
+    		sourceReaderExecutor.shutdownNow();
+    		sourceReaderExecutor = null;
+    		repository.close();
+    		repository = null;
+    		throw e;
+    	}
+    	super.doStart();
+    }
+    
+    @Override
+    protected void doStop() throws Exception {
+    	super.doStop();
+    	if (refWatcher != null) {
+    		refWatcher.stop();
+    	}
+    	if (compileExecutor != null) {
+    		compileExecutor.shutdownNow();
+    		compileExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    		compileExecutor = null;
+    	}
+    	if (sourceReaderExecutor != null) {
+    		sourceReaderExecutor.shutdownNow();
+    		sourceReaderExecutor = null;
+    	}
+    	refWatcher = null;
+    	synchronized (this) {
+    		if (activeSite != null && activeSite.isBroken()) {
+    			activeSite.release();
+    		}
+    		activeSite = null;
+    		for (SiteSnapshot site : processorObjects.values()) {
+    			site.release();
+    		}
+    		processorObjects.clear();
+    	}
+    	if (repository != null) {
+    		repository.close();
+    		repository = null;
+    		logger.debug("Closed repo: " + repoFile);
+    	}
+    }
+    
+    /**
+     * @return The active snapshot with a reference taken for the request
+     */
+    private SiteSnapshot acquireActiveSite() {
+    	while (true) {
+    		SiteSnapshot site = activeSite;
+    		// The snapshot could be released right after it has been replaced. Then the new one is taken
+    		if (site.acquire()) return site;
+    		if (activeSite == site) {
+    			throw new IllegalStateException("The active snapshot of commit " + site.getCommitId().getName() + " is already destroyed");
+    		}
+    	}
     }
     
     private void handleErrorDefault(String target, HttpServletRequest request, HttpServletResponse response, JGIException exception) {
@@ -191,14 +513,12 @@ public class JiggityHandler extends AbstractHandler {
 			response.getOutputStream().println("<p class=\"tip\"><em>To change this message design, add an error processor to your site</em></p>");
 			response.getOutputStream().println("</body></html>");
 		} catch (IOException e) {
-	        logger.error("Facepalm. Server can't send the error response to the client (request: \"" + target + "\" from " + request.getRemoteAddr() + ", exception code " + code + ": " + exception.getMessage() + ")");
-			e.printStackTrace();
+	        logger.error("Facepalm. Server can't send the error response to the client (request: \"" + target + "\" from " + request.getRemoteAddr() + ", exception code " + code + ": " + exception.getMessage() + ")", e);
 		} finally {
 			try {
 				response.getOutputStream().close();
 			} catch (IOException e) {
-				logger.error("Facepalm. Can't close the output");
-				e.printStackTrace();
+				logger.error("Facepalm. Can't close the output", e);
 			}
     	}
 
@@ -206,158 +526,250 @@ public class JiggityHandler extends AbstractHandler {
     }
     
     
-    private void handleError(ObjectId lastCommitId, String target, HttpServletRequest request, HttpServletResponse response, JGIException exception) {
-    	logger.info("Responding with error response to the client (request: \"" + target + "\" from " + request.getRemoteAddr() + ", exception " + exception);
+    private void handleError(SiteSnapshot site, String target, HttpServletRequest request, HttpServletResponse response, JGIException exception) {
+    	logger.debug("Responding with error response to the client (request: \"{}\" from {}, exception {})", target, request.getRemoteAddr(), exception);
     	
         // Searching for a proper exception processor
         boolean requestExceptionProcessorFound = false;
-        for (Object obj : processorObjects.get(lastCommitId).scripts.values()) {
-        	if (obj instanceof JGIExceptionHandler) {
-	        	JGIExceptionHandler processor = (JGIExceptionHandler)obj;
-	        	response.resetBuffer();	// We are resetting the buffer after scripts or processors
-	        	requestExceptionProcessorFound = processor.onError(target, request, response, exception);
-	        	if (requestExceptionProcessorFound) {
-	                logger.info("Error processed by " + processor.getClass().getCanonicalName());
-					return;
-				}
-        	}
+        for (JGIExceptionHandler processor : site.getExceptionHandlers()) {
+        	response.resetBuffer();	// We are resetting the buffer after scripts or processors
+        	requestExceptionProcessorFound = processor.onError(target, request, response, exception);
+        	if (requestExceptionProcessorFound) {
+                logger.debug("Error processed by {}", processor.getClass().getCanonicalName());
+				return;
+			}
         }
 
         handleErrorDefault(target, request, response, exception);
     }
     
+    /**
+     * @return <code>true</code> if the request calls a JGI script or a processor
+     */
+    private boolean callsScripts(SiteSnapshot site, String target) {
+    	SiteSnapshot.Entry file = site.getFile(target.startsWith("/") ? target.substring(1) : target);
+    	return (file != null && file.script != null) || site.getRoutes().match(target).length > 0;
+    }
+    
 	@Override
-	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+	public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
 
+		// The response is always made here, the next handlers shouldn't touch it (even if it's an empty 304)
+		baseRequest.setHandled(true);
+		
+		final Metrics.Request timing = metrics.startRequest();
+		SiteSnapshot acquired = null;
+		// Once process() is called (or the task calling it is made), it releases the snapshot and finishes the request
+		boolean handedOver = false;
 		try {
-	        // Removing first '/'
-	        //if (target.startsWith("/")) target = target.substring(1);
-	
-			checkCommitUpdated();
-	
-	        logger.info("Handling request \"" + target + "\" from " + request.getRemoteAddr());
+	        logger.debug("Handling request \"{}\" from {}", target, request.getRemoteAddr());
 			
-			try (Repository repository = openRepository()) {
-	            // find the HEAD
-	            ObjectId lastCommitId = null;
-	            if (allowStash) lastCommitId = repository.resolve("refs/stash");
-	            if (lastCommitId == null) lastCommitId = repository.resolve(revStr);
-	            
-	            if (lastCommitId == null) throw new IOException("Can't find a commit for \"" + revStr + "\"");
-	
-	            // Selecting the commit
-	            try (RevWalk revWalk = new RevWalk(repository)) {
-	                RevCommit commit = revWalk.parseCommit(lastCommitId);
-	                	
-	                // and using commit's tree find the path
-	                RevTree tree = commit.getTree();
-	                logger.debug("Current commit: " + tree.getName());
-	                
-	                // Walking the tree
-	                try (TreeWalk treeWalk = new TreeWalk(repository)) {
-	                    treeWalk.addTree(tree);
-	                    treeWalk.setRecursive(true);
-	                    
-	                    String requestPath = target;
-	                    
-	                    // Removing first '/'
-	        	        if (requestPath.startsWith("/")) requestPath = requestPath.substring(1);
-	                    treeWalk.setFilter(PathFilter.create(requestPath));
-	                    
-	                    InputStream fileObjectInputStream = null;
-	                    
-	                    ObjectLoader loader = null;
-	                    
-	                    // 1. Searching for the file
-	                    boolean fileFound = false;
-	                    String foundFilePath = null;
-	                    while (treeWalk.next()) {
-	                        foundFilePath = treeWalk.getPathString();
-	                        if (foundFilePath.equals(requestPath)) {
-	                        	fileFound = true;
-	                        	break;
-	                        }
-	                    }	                    
-	                    
-	                    if (fileFound) {
-	                        ObjectId objectId = treeWalk.getObjectId(0);
-	                        
-	                        // Checking if the file is a JGI script
-	                        Class<?> jgiClass = processorObjects.get(lastCommitId).javaClassesForFiles.get(target);
-	                        JGIScript scriptForClass = processorObjects.get(lastCommitId).scripts.get(jgiClass);
-	                        
-	                        if (scriptForClass != null) {
-	                        	// 1a. Executing the file if it's a script
-		                        logger.info("The requested file is a JGI class. Executing it");
-		                        scriptForClass.onExecute(target, request, response);
-		                        return;
-	                        } else {
-		                        // 1b. Loading the file if it's not a script
-	                        	loader = repository.open(objectId);
-		                        if (!matchExcluded(foundFilePath)) {
-		                        	fileObjectInputStream = loader.openStream();
-		                        	logger.info("File found for request \"" + target + "\". Serving it.");
-		                        }
-	                        }
-	                    } else {
-	                        logger.info("No file for request \"" + target + "\". Trying to process without a file.");
-	                    }
+	        final SiteSnapshot site = acquireActiveSite();
+	        acquired = site;
+	        
+	        if (scriptExecutor.isDispatching() && callsScripts(site, target)) {
+	        	// The scripts could block for long, so they are run out of the connector's threads
+	        	final AsyncContext async = request.startAsync();
+	        	async.setTimeout(0);
+	        	Runnable task = new Runnable() {
+					@Override
+					public void run() {
+						boolean pending = false;
+						try {
+							pending = process(site, timing, target, baseRequest, request, response);
+						} finally {
+							if (!pending) async.complete();
+						}
+					}
+				};
+				handedOver = true;
+				if (!scriptExecutor.execute(task)) {
+					task.run();
+				}
+	        } else {
+	        	handedOver = true;
+	        	process(site, timing, target, baseRequest, request, response);
+	        }
+		} catch (Exception e) {
+			logger.error("General server exception occured: " + e.getMessage(), e);
+			
+    		handleErrorDefault(target, request, response, new JGIServerException(Code.INTERNAL_ERROR, e));
+		} finally {
+			if (!handedOver) {
+				if (acquired != null) acquired.release();
+				timing.finish(response.getStatus());
+				if (request.isAsyncStarted()) request.getAsyncContext().complete();
+			}
+		}
+	}
 	
-	                    // 2. Searching for a proper processor
-	                    boolean requestProcessorFound = false;
-	                    for (Object obj : processorObjects.get(lastCommitId).scripts.values()) {
-	                    	if (obj instanceof JGIProcessor) {
-		                    	JGIProcessor processor = (JGIProcessor)obj;
-		                    	
-		                    	// Creating a data output
-		                    	requestProcessorFound = processor.onRequest(target, fileObjectInputStream, request, response);
-		                    	
-		                    	if (requestProcessorFound) {
-				                    logger.info("Request \"" + target + "\" from " + request.getRemoteAddr() + " processed by " + processor.getClass().getName());
-									break;
-								}
-	                    	}
-	                    }
-	                    
-	                    // 3. If no processor found...
-	                    if (!requestProcessorFound) {
-	                    	if (loader != null && !matchExcluded(foundFilePath)) {
-			                    // ...and there is a loaded object, sending it directly
-			                    loader.copyTo(response.getOutputStream());
-			                    response.getOutputStream().close();
-			                    response.setStatus(HttpServletResponse.SC_OK);
-			                    logger.info("Request \"" + target + "\" from " + request.getRemoteAddr() + " processed directly");
-	                    	} else {
-			                    // ...and no object is loaded object, sending 404
-			                    logger.info("Request \"" + target + "\" from " + request.getRemoteAddr() + " can't be processed. No file/processor found. Responding with code 404.");
-	                    		throw new JGIClientException(JGIClientException.Code.NOT_FOUND, "Request can't be processed. No file or processor found");
+	/**
+	 * Finishes the request when the stage returned by a script completes. The snapshot is released
+	 * and the reader is closed then
+	 * @return <code>true</code> if the stage isn't completed yet. The snapshot and the reader are taken over then,
+	 * even if the request can't wait for the stage
+	 */
+	private boolean awaitCompletion(final SiteSnapshot site, final ObjectReader reader, final Metrics.Request timing, final String target, final HttpServletRequest request, final HttpServletResponse response, CompletionStage<Void> stage) throws Exception {
+		if (stage == null) return false;
+		if (stage instanceof CompletableFuture && ((CompletableFuture<Void>) stage).isDone()) {
+			// Completed right away. The errors are handled as the synchronous ones
+			try {
+				((CompletableFuture<Void>) stage).join();
+			} catch (CompletionException e) {
+				throw asException(e.getCause());
+			}
+			return false;
+		}
 
-	                    	}
-	                    }
+		final AsyncContext async;
+		if (request.isAsyncStarted()) {
+			async = request.getAsyncContext();
+		} else {
+			try {
+				async = request.startAsync();
+				async.setTimeout(0);
+			} catch (RuntimeException e) {
+				// The request can't wait for the stage, so it's answered right away. The stage could still
+				// use the snapshot and the reader, they're given back when it's done
+				logger.error("Can't wait for the asynchronous request \"" + target + "\": " + e.getMessage(), e);
+				try {
+					handleError(site, target, request, response, new JGIServerException(Code.INTERNAL_ERROR, e));
+				} finally {
+					timing.finish(response.getStatus());
+					stage.whenComplete(new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void result, Throwable error) {
+							reader.close();
+							site.release();
+						}
+					});
+				}
+				return true;
+			}
+		}
+		stage.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable error) {
+				try {
+					if (error != null) {
+						if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+						logger.error("Asynchronous request \"" + target + "\" failed: " + error.getMessage(), error);
+						if (!response.isCommitted()) {
+							Exception e = asException(error);
+							handleError(site, target, request, response, e instanceof JGIException ? (JGIException) e : new JGIServerException(Code.INTERNAL_ERROR, e));
+						}
+					}
+				} catch (RuntimeException e) {
+					logger.error("Can't finish the asynchronous request \"" + target + "\": " + e.getMessage(), e);
+				} finally {
+					reader.close();
+					site.release();
+					timing.finish(response.getStatus());
+					async.complete();
+				}
+			}
+		});
+		return true;
+	}
+
+	private static Exception asException(Throwable error) {
+		if (error instanceof Exception) return (Exception) error;
+		if (error instanceof Error) throw (Error) error;
+		return new RuntimeException(error);
+	}
+
+	/**
+	 * Serves the request from the snapshot and releases it
+	 * @return <code>true</code> if a script finishes the request asynchronously. The snapshot is released
+	 * and the asynchronous context is completed when it's done
+	 */
+	private boolean process(SiteSnapshot site, Metrics.Request timing, String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+		boolean pending = false;
+		try {
+			// Closed when the request is finished, an asynchronous processor could read the file after this method returns
+			final ObjectReader reader = repository.newObjectReader();
+	        try {
+	            String requestPath = target;
+	            
+	            // Removing first '/'
+		        if (requestPath.startsWith("/")) requestPath = requestPath.substring(1);
+	            
+	            InputStream fileObjectInputStream = null;
+	            
+	            // 1. Searching for the file
+	            SiteSnapshot.Entry file = site.getFile(requestPath);
+	            
+	            if (file != null) {
+	                if (file.script != null) {
+	                	// 1a. Executing the file if it's a script
+	                    logger.debug("The requested file is a JGI class. Executing it");
+	                    timing.setScript(Metrics.RequestKind.SCRIPT, file.script.getClass().getName());
+	                    pending = awaitCompletion(site, reader, timing, target, request, response, file.script.onExecuteAsync(target, request, response));
+	                    return pending;
+	                } else if (!file.excluded) {
+	                    // 1b. Opening the file if it's not a script (it's loaded only if a processor reads it)
+	                	fileObjectInputStream = staticContentSender.openStream(file, reader);
+	                	logger.debug("File found for request \"{}\". Serving it.", target);
 	                }
-	            } catch (JGIClientException e) {
-	    			logger.error("Client exception occured with code " + e.getCode().httpCode + ": " + e.getMessage());
-	    			e.printStackTrace();
-	    			
-	        		handleError(lastCommitId, target, request, response, e);
-	    		} catch (JGIServerException e) {
-	    			logger.error("Server exception occured with code " + e.getCode().httpCode + ": " + e.getMessage());
-	    			e.printStackTrace();
-	    			
-	        		handleError(lastCommitId, target, request, response, e);
-	    		} catch (Exception e) {
-	    			logger.error("General server exception occured: " + e.getMessage());
-	    			e.printStackTrace();
-	    			
-	        		handleError(lastCommitId, target, request, response, new JGIServerException(Code.INTERNAL_ERROR, e));
-	    		}
-	        }
+	            } else {
+	                logger.debug("No file for request \"{}\". Trying to process without a file.", target);
+	            }
+	
+	            // 2. Searching for a proper processor
+	            boolean requestProcessorFound = false;
+	            for (JGIProcessor processor : site.getRoutes().match(target)) {
+                	// Creating a data output
+                	CompletionStage<Void> stage = processor.onRequestAsync(target, fileObjectInputStream, request, response);
+                	requestProcessorFound = stage != null;
+                	
+                	if (requestProcessorFound) {
+                		timing.setScript(Metrics.RequestKind.PROCESSOR, processor.getClass().getName());
+                		pending = awaitCompletion(site, reader, timing, target, request, response, stage);
+	                    logger.debug("Request \"{}\" from {} processed by {}", target, request.getRemoteAddr(), processor.getClass().getName());
+						break;
+					}
+	            }
+	            
+	            // 3. If no processor found...
+	            if (!requestProcessorFound) {
+	            	if (fileObjectInputStream != null) {
+	                    // ...and there is a file, sending it directly
+	            		timing.setKind(Metrics.RequestKind.STATIC);
+	            		staticContentSender.send(site, file, reader, baseRequest, request, response);
+	                    logger.debug("Request \"{}\" from {} processed directly", target, request.getRemoteAddr());
+	            	} else {
+	                    // ...and no object is loaded object, sending 404
+	            		timing.setKind(Metrics.RequestKind.NOT_FOUND);
+	                    logger.debug("Request \"{}\" from {} can't be processed. No file/processor found. Responding with code 404.", target, request.getRemoteAddr());
+	            		throw new JGIClientException(JGIClientException.Code.NOT_FOUND, "Request can't be processed. No file or processor found");
+	            	}
+	            }
+	        } catch (JGIClientException e) {
+				// The clients' mistakes are usual. They aren't worth a stack trace unless debugging
+				logger.debug("Client exception occured with code {}: {}", e.getCode().httpCode, e.getMessage(), e);
+				
+	    		handleError(site, target, request, response, e);
+			} catch (JGIServerException e) {
+				logger.error("Server exception occured with code " + e.getCode().httpCode + ": " + e.getMessage(), e);
+				
+	    		handleError(site, target, request, response, e);
+			} catch (Exception e) {
+				logger.error("General server exception occured: " + e.getMessage(), e);
+				
+	    		handleError(site, target, request, response, new JGIServerException(Code.INTERNAL_ERROR, e));
+			} finally {
+				if (!pending) {
+					reader.close();
+					site.release();
+					timing.finish(response.getStatus());
+				}
+			}
 		} catch (Exception e) {
-			logger.error("General server exception occured: " + e.getMessage());
-			e.printStackTrace();
+			logger.error("General server exception occured: " + e.getMessage(), e);
 			
     		handleErrorDefault(target, request, response, new JGIServerException(Code.INTERNAL_ERROR, e));
 		}
+		return pending;
 	}
 
 }
@@ -1,21 +1,35 @@
 package bfbc.jiggity;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
 import java.util.regex.Pattern;
 
-import org.eclipse.jetty.server.Handler;
-import org.eclipse.jetty.server.NetworkTrafficServerConnector;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.AsyncNCSARequestLog;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.RequestLog;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bfbc.jiggity.cache.BlobCache;
+import bfbc.jiggity.compiler.BytecodeCache;
 import bfbc.jiggity.config.Configuration;
+import bfbc.jiggity.metrics.Metrics;
+import bfbc.jiggity.metrics.MetricsHandler;
 
 public class JiggityServer {
 	
@@ -53,21 +67,88 @@ public class JiggityServer {
 	    
 	    File gitPathFile = new File(workingDir.getAbsoluteFile(), conf.getGitPath());
 	    logger.info("Loading git repo: " + gitPathFile.getAbsolutePath() + " @ revision \"" + conf.getGitRevStr() + "\"");
-	    JiggityHandler gitReadyHandler = new JiggityHandler(gitPathFile, conf.getGitRevStr(), conf.isGitAllowStash(), excludePatterns);
+	    File cacheSpillDir = new File(workingDir.getAbsoluteFile(), conf.getCacheSpillDir());
+	    BlobCache blobCache = new BlobCache(conf.getCacheSize(), conf.getCacheMaxObjectSize(), conf.getCacheStorage(), cacheSpillDir);
+	    StaticContentSender staticContentSender = new StaticContentSender(blobCache, conf.isGzip(), conf.getGzipMinSize(), conf.isPrecompress());
+	    BytecodeCache bytecodeCache = null;
+	    if (conf.isCompilerCache()) {
+	    	bytecodeCache = new BytecodeCache(new File(workingDir.getAbsoluteFile(), conf.getCompilerCacheDir()), conf.getCompilerCacheEntries());
+	    }
+	    Metrics metrics = new Metrics(blobCache);
+	    JiggityHandler gitReadyHandler = new JiggityHandler(gitPathFile, conf.getGitRevStr(), conf.isGitAllowStash(), conf.getGitPollInterval(), conf.getGitKeepPrevious(), excludePatterns, staticContentSender, bytecodeCache,
+	    		new ScriptExecutor(conf.getScriptsExecutor(), conf.getScriptsThreads()), metrics);
 	    
-	    handlers.setHandlers(new Handler[] { gitReadyHandler, /*resource_handler,*/ new DefaultHandler() });
+	    if (conf.isMetrics()) {
+	    	logger.info("Serving metrics on " + conf.getMetricsPath());
+	    	handlers.addHandler(new MetricsHandler(metrics, conf.getMetricsPath()));
+	    }
+	    handlers.addHandler(gitReadyHandler);
+	    handlers.addHandler(new DefaultHandler());
 
 	    logger.info("Starting server");
-	    InetSocketAddress addressToListen = new InetSocketAddress(InetAddress.getByName(conf.getInetAddress()), Integer.parseInt(conf.getPort()));
-	    server = new Server(addressToListen);
-	    NetworkTrafficServerConnector connector = new NetworkTrafficServerConnector(server);
-	    server.addConnector(connector);
+	    server = new Server(createThreadPool(conf));
+	    server.addConnector(createConnector(server, conf));
+	    if (conf.isAccessLog()) {
+	    	server.setRequestLog(createAccessLog(workingDir, conf));
+	    }
 
 	    server.setHandler(handlers);
 
 	    server.start();
 	}
 	
+	private static QueuedThreadPool createThreadPool(Configuration conf) {
+		BlockingQueue<Runnable> queue;
+		if (conf.getThreadsQueue() > 0) {
+			// The tasks beyond the limit are rejected instead of waiting for long
+			queue = new BlockingArrayQueue<>(Math.min(conf.getThreadsMin(), conf.getThreadsQueue()), conf.getThreadsMin(), conf.getThreadsQueue());
+		} else {
+			queue = new BlockingArrayQueue<>(conf.getThreadsMin(), conf.getThreadsMin());
+		}
+		QueuedThreadPool threadPool = new QueuedThreadPool(conf.getThreadsMax(), conf.getThreadsMin(), 60000, queue);
+		threadPool.setName("jiggity");
+		logger.info("Server threads: " + conf.getThreadsMin() + " to " + conf.getThreadsMax() + ", queue " + (conf.getThreadsQueue() > 0 ? conf.getThreadsQueue() : "unbounded"));
+		return threadPool;
+	}
+	
+	private static ServerConnector createConnector(Server server, Configuration conf) throws UnknownHostException {
+		HttpConfiguration httpConfig = new HttpConfiguration();
+		httpConfig.setOutputBufferSize(conf.getConnectorOutputBufferSize());
+		
+		List<ConnectionFactory> factories = new ArrayList<>();
+		factories.add(new HttpConnectionFactory(httpConfig));
+		if (conf.isConnectorH2c()) {
+			// The clients either upgrade an HTTP/1.1 connection ("Upgrade: h2c") or start with the HTTP/2 preface right away
+			HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+			h2c.setMaxConcurrentStreams(conf.getConnectorH2cMaxStreams());
+			factories.add(h2c);
+		}
+		
+		ServerConnector connector = new ServerConnector(server, conf.getConnectorAcceptors(), conf.getConnectorSelectors(), factories.toArray(new ConnectionFactory[factories.size()]));
+		connector.setHost(InetAddress.getByName(conf.getInetAddress()).getHostAddress());
+		connector.setPort(Integer.parseInt(conf.getPort()));
+		connector.setIdleTimeout(conf.getConnectorIdleTimeout());
+		connector.setAcceptQueueSize(conf.getConnectorAcceptBacklog());
+		logger.info("Listening on " + conf.getInetAddress() + ":" + conf.getPort() + " (" + connector.getAcceptors() + " acceptors, "
+				+ connector.getSelectorManager().getSelectorCount() + " selectors, protocols " + connector.getProtocols() + ")");
+		return connector;
+	}
+	
+	private static RequestLog createAccessLog(File workingDir, Configuration conf) throws IOException {
+		File file = new File(workingDir.getAbsoluteFile(), conf.getAccessLogFile());
+		Files.createDirectories(file.getParentFile().toPath());
+		
+		// The lines are formatted in the request threads and written in batches by a separate one
+		AsyncNCSARequestLog accessLog = new AsyncNCSARequestLog(file.getPath(), new BlockingArrayQueue<String>(conf.getAccessLogQueue()));
+		accessLog.setExtended(conf.isAccessLogExtended());
+		accessLog.setLogLatency(conf.isAccessLogLatency());
+		accessLog.setRetainDays(conf.getAccessLogRetainDays());
+		accessLog.setLogTimeZone(conf.getAccessLogTimeZone());
+		accessLog.setAppend(true);
+		logger.info("Access log: " + file.getPath());
+		return accessLog;
+	}
+	
 	public void join() throws InterruptedException {
 	    server.join();
 	}
@@ -0,0 +1,170 @@
+package bfbc.jiggity;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the refs of the served repository in a background thread and publishes the commit
+ * the site should be served from. The request threads only read {@link #getCommitId()} &#151;
+ * no locks and no ref I/O on the request path.
+ *
+ * The filesystem watch on <code>refs/</code>, <code>packed-refs</code> and <code>HEAD</code> makes
+ * the server notice a push immediately. The refs are also re-resolved every poll interval
+ * in case the watch misses something (network filesystems, overflows) or is not supported at all.
+ */
+public class RefWatcher extends AbstractLifeCycle implements Runnable {
+
+	private static Logger logger = LoggerFactory.getLogger(RefWatcher.class);
+
+	public interface Listener {
+		void onCommitChanged(ObjectId commitId);
+	}
+
+	private final Repository repository;
+	private final String revStr;
+	private final boolean allowStash;
+	private final long pollInterval;
+	private final Listener listener;
+
+	private volatile ObjectId commitId;
+
+	private WatchService watchService;
+	private Thread thread;
+
+	public RefWatcher(Repository repository, String revStr, boolean allowStash, long pollInterval, Listener listener) {
+		this.repository = repository;
+		this.revStr = revStr;
+		this.allowStash = allowStash;
+		this.pollInterval = pollInterval;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return The commit the site should be served from at the moment
+	 */
+	public ObjectId getCommitId() {
+		return commitId;
+	}
+
+	private ObjectId resolve() throws IOException {
+		// find the HEAD
+		ObjectId lastCommitId = null;
+		if (allowStash) lastCommitId = repository.resolve(Constants.R_STASH);
+		if (lastCommitId == null) lastCommitId = repository.resolve(revStr);
+		return lastCommitId;
+	}
+
+	private void registerRecursively(File dir) {
+		if (!dir.isDirectory()) return;
+		try {
+			dir.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		} catch (IOException e) {
+			logger.warn("Can't watch the directory " + dir + ". Falling back to polling for it", e);
+		}
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				registerRecursively(child);
+			}
+		}
+	}
+
+	private void update() {
+		try {
+			ObjectId newCommitId = resolve();
+			if (newCommitId == null) {
+				logger.warn("Can't find a commit for \"" + revStr + "\". Keeping the current one");
+			} else if (!newCommitId.equals(commitId)) {
+				logger.info("The served revision has changed to commit " + newCommitId.getName());
+				commitId = newCommitId;
+				if (listener != null) listener.onCommitChanged(newCommitId);
+			}
+		} catch (IOException e) {
+			logger.error("Can't resolve the revision \"" + revStr + "\"", e);
+		}
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		commitId = resolve();
+		if (commitId == null) {
+			throw new IOException("Can't find a commit for \"" + revStr + "\"");
+		}
+
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			repository.getDirectory().toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+			registerRecursively(new File(repository.getDirectory(), Constants.R_REFS));
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.warn("Filesystem watch is not available for " + repository.getDirectory() + ". Polling the refs every " + pollInterval + " ms", e);
+			if (watchService != null) watchService.close();
+			watchService = null;
+		}
+
+		thread = new Thread(this, "jiggity-ref-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		if (watchService != null) watchService.close();
+		if (thread != null) {
+			thread.interrupt();
+			thread.join();
+			thread = null;
+		}
+		watchService = null;
+	}
+
+	@Override
+	public void run() {
+		while (isRunning() || isStarting()) {
+			try {
+				if (watchService != null) {
+					WatchKey key = watchService.poll(pollInterval, TimeUnit.MILLISECONDS);
+					while (key != null) {
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == ENTRY_CREATE && event.context() instanceof Path) {
+								// New ref namespaces (like refs/heads/feature/) should be watched as well
+								Path dir = (Path) key.watchable();
+								registerRecursively(dir.resolve((Path) event.context()).toFile());
+							}
+						}
+						key.reset();
+						// Draining the rest of the events the ref update has caused
+						key = watchService.poll();
+					}
+				} else {
+					Thread.sleep(pollInterval);
+				}
+				update();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				break;
+			} catch (RuntimeException e) {
+				// The refs are checked again on the next event or poll, the watcher should outlive a bad update
+				logger.error("Can't update the served revision", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package bfbc.jiggity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bfbc.jiggity.api.JGIProcessor;
+
+/**
+ * Finds the processors for a request target by the patterns they declare in {@link JGIProcessor#getPatterns()}.
+ *
+ * The table is built once for a commit. A lookup costs a few hash lookups (one per directory of the target
+ * and one per suffix length) instead of calling every processor of the site
+ */
+public class RouteTable {
+
+	private static Logger logger = LoggerFactory.getLogger(RouteTable.class);
+
+	/**
+	 * The processors in the order of {@link ScriptOrder}
+	 */
+	private final JGIProcessor[] processors;
+	/**
+	 * The number of the priority of every processor among the distinct priorities (0 is the highest)
+	 */
+	private final int[] ranks;
+	private final boolean singleRank;
+
+	/**
+	 * The values are the indexes of the processors in {@link #processors}
+	 */
+	private final Map<String, List<Integer>> exact = new HashMap<>();
+	/**
+	 * The prefixes end with '/' (<code>/path/*</code> is kept as <code>/path/</code>)
+	 */
+	private final Map<String, List<Integer>> prefixes = new HashMap<>();
+	private final Map<String, List<Integer>> suffixes = new HashMap<>();
+	private final int[] suffixLengths;
+	private final List<Integer> catchAll = new ArrayList<>();
+	private final JGIProcessor[] catchAllProcessors;
+
+	private static void add(Map<String, List<Integer>> map, String key, int index) {
+		List<Integer> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<>();
+			map.put(key, list);
+		}
+		if (!list.contains(index)) list.add(index);
+	}
+
+	/**
+	 * @param processors the processors sorted by {@link ScriptOrder#sort}
+	 */
+	public RouteTable(List<JGIProcessor> processors) {
+		this.processors = processors.toArray(new JGIProcessor[processors.size()]);
+		this.ranks = new int[this.processors.length];
+
+		TreeSet<Integer> lengths = new TreeSet<>(Collections.reverseOrder());
+		int previousPriority = 0;
+		for (int i = 0; i < this.processors.length; i++) {
+			JGIProcessor processor = this.processors[i];
+			int priority = processor.getPriority();
+			if (i > 0) {
+				ranks[i] = ranks[i - 1] + (priority != previousPriority ? 1 : 0);
+			}
+			previousPriority = priority;
+
+			String[] patterns = processor.getPatterns();
+			if (patterns == null) {
+				catchAll.add(i);
+				continue;
+			}
+
+			for (String pattern : patterns) {
+				int star = pattern.indexOf('*');
+				if (star == -1) {
+					add(exact, pattern, i);
+				} else if (star == pattern.length() - 1 && pattern.endsWith("/*") && pattern.startsWith("/")) {
+					add(prefixes, pattern.substring(0, star), i);
+				} else if (star == 0 && pattern.length() > 1 && pattern.indexOf('*', 1) == -1) {
+					String suffix = pattern.substring(1);
+					add(suffixes, suffix, i);
+					lengths.add(suffix.length());
+				} else {
+					logger.error("Invalid pattern \"" + pattern + "\" of the processor " + processor.getClass().getName() + ". It is ignored");
+				}
+			}
+		}
+		singleRank = this.processors.length == 0 || ranks[ranks.length - 1] == 0;
+
+		suffixLengths = new int[lengths.size()];
+		int i = 0;
+		for (int length : lengths) {
+			suffixLengths[i++] = length;
+		}
+
+		catchAllProcessors = new JGIProcessor[catchAll.size()];
+		for (i = 0; i < catchAllProcessors.length; i++) {
+			catchAllProcessors[i] = this.processors[catchAll.get(i)];
+		}
+	}
+
+	private static void addAll(List<Integer> res, List<Integer> matched) {
+		if (matched == null) return;
+		for (Integer index : matched) {
+			if (!res.contains(index)) res.add(index);
+		}
+	}
+
+	/**
+	 * @param target the request target (starting with '/')
+	 * @return The processors matching the target in the order they should be tried. The array shouldn't be changed
+	 */
+	public JGIProcessor[] match(String target) {
+		if (exact.isEmpty() && prefixes.isEmpty() && suffixes.isEmpty()) {
+			// No processor declares patterns. Nothing to look up
+			return catchAllProcessors;
+		}
+
+		// The matches are collected from the most specific to the least one
+		List<Integer> res = new ArrayList<>();
+		addAll(res, exact.get(target));
+
+		if (!prefixes.isEmpty()) {
+			// "/path/*" matches "/path" itself too
+			addAll(res, prefixes.get(target + "/"));
+			for (int i = target.lastIndexOf('/'); i >= 0; i = target.lastIndexOf('/', i - 1)) {
+				addAll(res, prefixes.get(target.substring(0, i + 1)));
+				if (i == 0) break;
+			}
+		}
+
+		for (int length : suffixLengths) {
+			if (length <= target.length()) {
+				addAll(res, suffixes.get(target.substring(target.length() - length)));
+			}
+		}
+
+		addAll(res, catchAll);
+
+		if (!singleRank) {
+			// The priorities go first. The sort is stable, so the more specific matches stay ahead among the equal priorities
+			Collections.sort(res, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return Integer.compare(ranks[o1], ranks[o2]);
+				}
+			});
+		}
+
+		JGIProcessor[] matched = new JGIProcessor[res.size()];
+		for (int i = 0; i < matched.length; i++) {
+			matched[i] = processors[res.get(i)];
+		}
+		return matched;
+	}
+}
@@ -0,0 +1,141 @@
+package bfbc.jiggity;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the requests that call the JGI scripts and processors. The scripts could block for long
+ * (database calls, requests to other services), so they could be taken out of the connector's thread pool,
+ * leaving it to the static files and the network I/O
+ */
+public class ScriptExecutor extends AbstractLifeCycle {
+
+	private static Logger logger = LoggerFactory.getLogger(ScriptExecutor.class);
+
+	public enum Mode {
+		/**
+		 * The scripts are run in the connector's threads
+		 */
+		CONTAINER,
+		/**
+		 * The scripts are run in a dedicated pool of threads
+		 */
+		POOL,
+		/**
+		 * Every request is run in its own virtual thread. Needs Java 21 or newer,
+		 * the dedicated pool is used on the older ones
+		 */
+		VIRTUAL
+	}
+
+	private final Mode mode;
+	private final int threads;
+
+	private volatile ExecutorService executor;
+
+	/**
+	 * @param mode where the scripts are run
+	 * @param threads the number of threads of the {@link Mode#POOL} mode
+	 */
+	public ScriptExecutor(Mode mode, int threads) {
+		this.mode = mode;
+		this.threads = threads;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return <code>true</code> if the scripts aren't run in the connector's threads
+	 */
+	public boolean isDispatching() {
+		return mode != Mode.CONTAINER;
+	}
+
+	/**
+	 * The server is compiled for Java 8, so the virtual threads are looked up by reflection
+	 * @return The executor or <code>null</code> if the virtual threads aren't supported
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			// Java 19 and 20 have them as a preview feature only
+			logger.debug("Virtual threads are not enabled", e.getCause());
+			return null;
+		}
+	}
+
+	private ExecutorService newPoolExecutor() {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jiggity-script-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		if (mode == Mode.VIRTUAL) {
+			executor = newVirtualThreadExecutor();
+			if (executor != null) {
+				logger.info("JGI scripts are run in virtual threads");
+			} else {
+				logger.warn("Virtual threads are not supported by this Java (" + System.getProperty("java.version") + "). JGI scripts are run in a pool of " + threads + " threads");
+			}
+		}
+		if (mode == Mode.POOL || (mode == Mode.VIRTUAL && executor == null)) {
+			executor = newPoolExecutor();
+			logger.info("JGI scripts are run in a pool of " + threads + " threads");
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		if (executor != null) {
+			executor.shutdown();
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				logger.warn("Some JGI scripts are still running. Interrupting them");
+				executor.shutdownNow();
+			}
+			executor = null;
+		}
+	}
+
+	/**
+	 * Runs the task in the executor
+	 * @return <code>false</code> if the task can't be run there (the executor is stopped or the scripts
+	 * are run in the connector's threads). The caller should run it itself then
+	 */
+	public boolean execute(Runnable task) {
+		ExecutorService executor = this.executor;
+		if (executor == null) return false;
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package bfbc.jiggity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bfbc.jiggity.api.JGIScript;
+
+/**
+ * The order the processors and the exception handlers of a commit are tried in:
+ * the higher {@link JGIScript#getPriority()} goes first, the equal priorities are ordered by the class name.
+ * The order doesn't depend on the order the classes are compiled or stored in
+ */
+public class ScriptOrder {
+
+	/**
+	 * @return The sorted copy of the scripts
+	 */
+	public static <T extends JGIScript> List<T> sort(Collection<T> scripts) {
+		// Asking every script once
+		final Map<JGIScript, Integer> priorities = new IdentityHashMap<>();
+		for (T script : scripts) {
+			priorities.put(script, script.getPriority());
+		}
+
+		List<T> sorted = new ArrayList<>(scripts);
+		Collections.sort(sorted, new Comparator<T>() {
+			@Override
+			public int compare(T o1, T o2) {
+				int res = Integer.compare(priorities.get(o2), priorities.get(o1));
+				if (res != 0) return res;
+				return o1.getClass().getName().compareTo(o2.getClass().getName());
+			}
+		});
+		return sorted;
+	}
+}
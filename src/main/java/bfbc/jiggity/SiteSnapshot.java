@@ -0,0 +1,178 @@
+package bfbc.jiggity;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bfbc.jiggity.api.JGIExceptionHandler;
+import bfbc.jiggity.api.JGIScript;
+import bfbc.jiggity.compiler.JavaCompilerTool.TargetClassLoader;
+
+/**
+ * Everything the server needs to serve a commit: the files of its tree indexed by the request path
+ * and the JGI objects compiled from its sources.
+ *
+ * A snapshot is built once when the commit is activated and is never changed afterwards,
+ * so the request threads read it without any synchronization.
+ *
+ * The snapshot is reference counted: the handler holds one reference while it keeps the snapshot
+ * and every request served from it holds one more. When the last reference is released
+ * the scripts are destroyed and nothing refers to their class loader anymore
+ */
+public class SiteSnapshot {
+
+	private static Logger logger = LoggerFactory.getLogger(SiteSnapshot.class);
+
+	public static class Entry {
+		/**
+		 * The path of the file in the tree (without the leading '/')
+		 */
+		public final String path;
+		public final ObjectId blobId;
+		public final long size;
+		public final FileMode mode;
+		/**
+		 * <code>true</code> if the file matches one of the static exclude patterns
+		 */
+		public final boolean excluded;
+		/**
+		 * The JGI script compiled from this file or <code>null</code> if the file isn't a script
+		 */
+		public final JGIScript script;
+
+		public Entry(String path, ObjectId blobId, long size, FileMode mode, boolean excluded, JGIScript script) {
+			super();
+			this.path = path;
+			this.blobId = blobId;
+			this.size = size;
+			this.mode = mode;
+			this.excluded = excluded;
+			this.script = script;
+		}
+
+		public Entry withScript(JGIScript script) {
+			return new Entry(path, blobId, size, mode, excluded, script);
+		}
+	}
+
+	private final ObjectId commitId;
+	private final long commitTime;
+	private final Map<String, Entry> files;
+	private final Map<Class<? extends JGIScript>, JGIScript> scripts;
+	private final RouteTable routes;
+	private final JGIExceptionHandler[] exceptionHandlers;
+	private final TargetClassLoader classLoader;
+	private final boolean broken;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	public SiteSnapshot(ObjectId commitId, long commitTime, Map<String, Entry> files, Map<Class<? extends JGIScript>, JGIScript> scripts, RouteTable routes,
+			JGIExceptionHandler[] exceptionHandlers, TargetClassLoader classLoader, boolean broken) {
+		this.commitId = commitId;
+		this.commitTime = commitTime;
+		this.files = Collections.unmodifiableMap(files);
+		this.scripts = Collections.unmodifiableMap(scripts);
+		this.routes = routes;
+		this.exceptionHandlers = exceptionHandlers;
+		this.classLoader = classLoader;
+		this.broken = broken;
+	}
+
+	/**
+	 * @return <code>true</code> if the scripts of the commit couldn't be compiled or instantiated,
+	 * so the snapshot was built only because there was nothing else to serve
+	 */
+	public boolean isBroken() {
+		return broken;
+	}
+
+	public ObjectId getCommitId() {
+		return commitId;
+	}
+
+	/**
+	 * @return The time of the commit in milliseconds. It's used as the modification time of all the files
+	 */
+	public long getCommitTime() {
+		return commitTime;
+	}
+
+	/**
+	 * @param path the path of the file in the tree (without the leading '/')
+	 * @return The file entry or <code>null</code> if there is no such file in the commit
+	 */
+	public Entry getFile(String path) {
+		return files.get(path);
+	}
+
+	public Collection<Entry> getFiles() {
+		return files.values();
+	}
+
+	public int getFilesCount() {
+		return files.size();
+	}
+
+	public Collection<JGIScript> getScripts() {
+		return scripts.values();
+	}
+
+	/**
+	 * @return The processors of the commit indexed by the request patterns
+	 */
+	public RouteTable getRoutes() {
+		return routes;
+	}
+
+	/**
+	 * @return The exception handlers of the commit in the order they should be tried. The array shouldn't be changed
+	 */
+	public JGIExceptionHandler[] getExceptionHandlers() {
+		return exceptionHandlers;
+	}
+
+	/**
+	 * Takes a reference to the snapshot for a request
+	 * @return <code>false</code> if the snapshot is already destroyed
+	 */
+	public boolean acquire() {
+		int count;
+		do {
+			count = references.get();
+			if (count == 0) return false;
+		} while (!references.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	/**
+	 * Releases a reference. The last one destroys the scripts
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			destroy();
+		}
+	}
+
+	private void destroy() {
+		for (JGIScript script : scripts.values()) {
+			try {
+				script.onDestroy();
+			} catch (RuntimeException | LinkageError e) {
+				logger.error("The JGI script object " + script.getClass().getName() + " has failed to destroy", e);
+			}
+		}
+		logger.info("Commit " + commitId.getName() + " unloaded");
+	}
+
+	/**
+	 * @return The class loader of the classes compiled from the commit or <code>null</code> if they can't be compiled
+	 */
+	public TargetClassLoader getClassLoader() {
+		return classLoader;
+	}
+}
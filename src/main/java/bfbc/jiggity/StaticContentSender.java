@@ -0,0 +1,347 @@
+package bfbc.jiggity;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.InclusiveByteRange;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.MultiPartOutputStream;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bfbc.jiggity.cache.BlobCache;
+import bfbc.jiggity.cache.ByteBufferInputStream;
+import bfbc.jiggity.cache.LazyInputStream;
+
+/**
+ * Sends the static files of a commit to the client.
+ *
+ * The blob id of a file is its strong ETag and the commit time is its modification time,
+ * so the conditional requests are answered with the snapshot data only, without loading the blob.
+ *
+ * The text files are gzipped for the clients that accept it. The compressed variants are kept in the
+ * {@link BlobCache}, so a blob is compressed only once. The files too big for the cache are sent as is.
+ *
+ * Range requests (including the multi-range ones) are served from the uncompressed contents.
+ * The files too big for the cache are streamed from the object database, skipping to the requested range,
+ * so a big blob is never loaded into the heap as a whole
+ */
+public class StaticContentSender {
+
+	private static Logger logger = LoggerFactory.getLogger(StaticContentSender.class);
+
+	private static final String GZIP = "gzip";
+
+	private final BlobCache blobCache;
+	private final MimeTypes mimeTypes = new MimeTypes();
+
+	private final boolean gzip;
+	private final long gzipMinSize;
+	private final boolean precompress;
+
+	/**
+	 * @param blobCache the cache for the file contents and their compressed variants
+	 * @param gzip <code>true</code> if the compressible files should be gzipped
+	 * @param gzipMinSize the smaller files aren't compressed
+	 * @param precompress <code>true</code> if all the compressible files should be compressed when a commit is activated
+	 */
+	public StaticContentSender(BlobCache blobCache, boolean gzip, long gzipMinSize, boolean precompress) {
+		this.blobCache = blobCache;
+		this.gzip = gzip;
+		this.gzipMinSize = gzipMinSize;
+		this.precompress = precompress;
+	}
+
+	public BlobCache getBlobCache() {
+		return blobCache;
+	}
+
+	private static boolean isCompressibleType(String mimeType) {
+		if (mimeType == null) return false;
+		return mimeType.startsWith("text/") || mimeType.contains("javascript") || mimeType.contains("json")
+				|| mimeType.contains("xml") || mimeType.equals("image/svg+xml");
+	}
+
+	private boolean isCompressible(SiteSnapshot.Entry file, String mimeType) {
+		return gzip && file.size >= gzipMinSize && blobCache.accepts(file.size) && isCompressibleType(mimeType);
+	}
+
+	/**
+	 * Compresses all the compressible static files of the snapshot in advance
+	 * (if it's turned on), so the first requests to them don't wait for it
+	 */
+	public void precompress(SiteSnapshot site, ObjectReader reader) throws IOException {
+		if (!precompress) return;
+
+		int count = 0;
+		for (SiteSnapshot.Entry file : site.getFiles()) {
+			if (!file.excluded && file.script == null && isCompressible(file, mimeTypes.getMimeByExtension(file.path))) {
+				blobCache.loadGzipped(file.blobId, reader);
+				count++;
+			}
+		}
+		logger.info("Precompressed " + count + " files of commit " + site.getCommitId().getName());
+	}
+
+	/**
+	 * @return <code>true</code> if the client accepts gzipped content. An explicit <code>gzip</code>
+	 * entry takes precedence over <code>*</code>
+	 */
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		Enumeration<String> headers = request.getHeaders(HttpHeader.ACCEPT_ENCODING.asString());
+		if (headers == null) return false;
+		Float gzipQ = null, anyQ = null;
+		while (headers.hasMoreElements()) {
+			for (String coding : headers.nextElement().split(",")) {
+				String[] params = coding.split(";");
+				String name = params[0].trim();
+				if (name.equalsIgnoreCase(GZIP) || name.equals("*")) {
+					float q = 1;
+					for (int i = 1; i < params.length; i++) {
+						String param = params[i].trim();
+						if (param.startsWith("q=")) {
+							try {
+								q = Float.parseFloat(param.substring(2));
+							} catch (NumberFormatException e) {
+								q = 0;
+							}
+						}
+					}
+					if (name.equals("*")) {
+						anyQ = q;
+					} else {
+						gzipQ = q;
+					}
+				}
+			}
+		}
+		if (gzipQ != null) return gzipQ > 0;
+		return anyQ != null && anyQ > 0;
+	}
+
+	/**
+	 * Opens the file contents from the cache or from the object database. The file is loaded only when the stream is read
+	 */
+	public InputStream openStream(final SiteSnapshot.Entry file, final ObjectReader reader) {
+		return new LazyInputStream(new LazyInputStream.Opener() {
+			@Override
+			public InputStream open() throws IOException {
+				ByteBuffer contents = null;
+				if (blobCache.accepts(file.size)) {
+					contents = blobCache.load(file.blobId, reader);
+				}
+				if (contents != null) {
+					return new ByteBufferInputStream(contents);
+				} else {
+					return reader.open(file.blobId, Constants.OBJ_BLOB).openStream();
+				}
+			}
+		});
+	}
+
+	static String etag(SiteSnapshot.Entry file, boolean gzipped) {
+		// The compressed variant is a different representation, so it has a different strong ETag
+		return "\"" + file.blobId.getName() + (gzipped ? "-" + GZIP : "") + "\"";
+	}
+
+	private static boolean etagMatches(String ifNoneMatch, String etag) {
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			// If-None-Match uses the weak comparison
+			if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if the client has the current version of the file already
+	 */
+	private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		if (!HttpMethod.GET.is(request.getMethod()) && !HttpMethod.HEAD.is(request.getMethod())) {
+			return false;
+		}
+
+		String ifNoneMatch = request.getHeader(HttpHeader.IF_NONE_MATCH.asString());
+		if (ifNoneMatch != null) {
+			// If-Modified-Since is ignored when If-None-Match is present
+			return etagMatches(ifNoneMatch, etag);
+		}
+
+		try {
+			long ifModifiedSince = request.getDateHeader(HttpHeader.IF_MODIFIED_SINCE.asString());
+			if (ifModifiedSince != -1) {
+				// HTTP dates have a second precision
+				return lastModified / 1000 <= ifModifiedSince / 1000;
+			}
+		} catch (IllegalArgumentException e) {
+			// A malformed date is ignored
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if the client has asked for some ranges of the current version of the file
+	 */
+	private static boolean isRangeRequest(HttpServletRequest request, String etag, long lastModified) {
+		if (!HttpMethod.GET.is(request.getMethod()) || request.getHeader(HttpHeader.RANGE.asString()) == null) {
+			return false;
+		}
+
+		String ifRange = request.getHeader(HttpHeader.IF_RANGE.asString());
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// If-Range uses the strong comparison, so a weak ETag never matches
+			return ifRange.equals(etag);
+		}
+		try {
+			long date = request.getDateHeader(HttpHeader.IF_RANGE.asString());
+			return date != -1 && date / 1000 == lastModified / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer contents, InclusiveByteRange range, long size) {
+		ByteBuffer slice = contents.duplicate();
+		slice.position((int) range.getFirst(size));
+		slice.limit((int) range.getLast(size) + 1);
+		return slice;
+	}
+
+	/**
+	 * Streams a range of a blob from the object database
+	 */
+	private static void copyRange(SiteSnapshot.Entry file, ObjectReader reader, InclusiveByteRange range, OutputStream out) throws IOException {
+		try (InputStream in = reader.open(file.blobId, Constants.OBJ_BLOB).openStream()) {
+			long toSkip = range.getFirst(file.size);
+			while (toSkip > 0) {
+				long skipped = in.skip(toSkip);
+				if (skipped <= 0) {
+					if (in.read() == -1) throw new EOFException("Unexpected end of blob " + file.blobId.getName());
+					skipped = 1;
+				}
+				toSkip -= skipped;
+			}
+
+			long toCopy = range.getSize(file.size);
+			byte[] buf = new byte[8192];
+			while (toCopy > 0) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, toCopy));
+				if (n == -1) throw new EOFException("Unexpected end of blob " + file.blobId.getName());
+				out.write(buf, 0, n);
+				toCopy -= n;
+			}
+		}
+	}
+
+	private void sendRanges(SiteSnapshot.Entry file, String mimeType, ObjectReader reader, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		List<InclusiveByteRange> ranges = InclusiveByteRange.satisfiableRanges(request.getHeaders(HttpHeader.RANGE.asString()), file.size);
+		if (ranges == null || ranges.isEmpty()) {
+			response.setHeader(HttpHeader.CONTENT_RANGE.asString(), InclusiveByteRange.to416HeaderRangeString(file.size));
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+
+		ByteBuffer contents = null;
+		if (blobCache.accepts(file.size)) {
+			contents = blobCache.load(file.blobId, reader);
+		}
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		if (ranges.size() == 1) {
+			InclusiveByteRange range = ranges.get(0);
+			response.setHeader(HttpHeader.CONTENT_RANGE.asString(), range.toHeaderRangeString(file.size));
+			response.setContentLengthLong(range.getSize(file.size));
+			if (contents != null) {
+				baseRequest.getResponse().getHttpOutput().sendContent(slice(contents, range, file.size));
+			} else {
+				copyRange(file, reader, range, response.getOutputStream());
+			}
+		} else {
+			MultiPartOutputStream multi = new MultiPartOutputStream(response.getOutputStream());
+			response.setContentType("multipart/byteranges; boundary=" + multi.getBoundary());
+			String partType = mimeType != null ? mimeType : "application/octet-stream";
+			for (InclusiveByteRange range : ranges) {
+				multi.startPart(partType, new String[] { HttpHeader.CONTENT_RANGE.asString() + ": " + range.toHeaderRangeString(file.size) });
+				if (contents != null) {
+					Channels.newChannel(multi).write(slice(contents, range, file.size));
+				} else {
+					copyRange(file, reader, range, multi);
+				}
+			}
+			multi.close();
+		}
+		response.getOutputStream().close();
+	}
+
+	public void send(SiteSnapshot site, SiteSnapshot.Entry file, ObjectReader reader, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String mimeType = mimeTypes.getMimeByExtension(file.path);
+		if (mimeType != null) response.setContentType(mimeType);
+		response.setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes");
+
+		boolean ranged = isRangeRequest(request, etag(file, false), site.getCommitTime());
+
+		boolean compressible = isCompressible(file, mimeType);
+		if (compressible) response.setHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+		boolean gzipped = compressible && !ranged && acceptsGzip(request);
+
+		String etag = etag(file, gzipped);
+		response.setHeader(HttpHeader.ETAG.asString(), etag);
+		response.setDateHeader(HttpHeader.LAST_MODIFIED.asString(), site.getCommitTime());
+
+		if (isNotModified(request, etag, site.getCommitTime())) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		if (ranged) {
+			sendRanges(file, mimeType, reader, baseRequest, request, response);
+			return;
+		}
+
+		ByteBuffer contents = null;
+		if (gzipped) {
+			contents = blobCache.loadGzipped(file.blobId, reader);
+			if (contents != null) {
+				response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), GZIP);
+			} else {
+				// Couldn't be cached, the identity is sent instead
+				response.setHeader(HttpHeader.ETAG.asString(), etag(file, false));
+			}
+		}
+		if (contents == null && blobCache.accepts(file.size)) {
+			contents = blobCache.load(file.blobId, reader);
+		}
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		if (contents != null) {
+			response.setContentLengthLong(contents.remaining());
+			// The cached buffer goes to the connection as is, without copying it through the stream
+			baseRequest.getResponse().getHttpOutput().sendContent(contents);
+		} else {
+			// Too big for the cache, streaming it from the object database
+			response.setContentLengthLong(file.size);
+			ObjectLoader loader = reader.open(file.blobId, Constants.OBJ_BLOB);
+			loader.copyTo(response.getOutputStream());
+		}
+		response.getOutputStream().close();
+	}
+}
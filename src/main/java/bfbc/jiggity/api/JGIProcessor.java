@@ -1,6 +1,8 @@
 package bfbc.jiggity.api;
 
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -15,8 +17,42 @@ public abstract class JGIProcessor extends JGIScript {
 	 * @param fileStream If a real file found for the target path, it will be opened and sent here. Instead, this
 	 * argument will be <code>null</code>
 	 * @param response The response object to write the result into
-	 * @return
+	 * @return <code>true</code> if the request is processed. The default one doesn't process anything
+	 * (for the processors implementing {@link #onRequestAsync} only)
 	 * @throws Exception
 	 */
-	public abstract boolean onRequest(String target, InputStream fileStream, HttpServletRequest request, HttpServletResponse response) throws JGIException; 
+	public boolean onRequest(String target, InputStream fileStream, HttpServletRequest request, HttpServletResponse response) throws JGIException {
+		return false;
+	}
+
+	/**
+	 * The asynchronous variant of {@link #onRequest}. The server calls this function, the default one calls
+	 * {@link #onRequest}. The processor decides if it processes the request right away, but could finish
+	 * the response later (see {@link JGIScript#onExecuteAsync})
+	 * @return The stage completing when the response is written or <code>null</code> if the processor
+	 * doesn't process the request
+	 */
+	public CompletionStage<Void> onRequestAsync(String target, InputStream fileStream, HttpServletRequest request, HttpServletResponse response) throws JGIException {
+		if (!onRequest(target, fileStream, request, response)) {
+			return null;
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * The requests this processor is interested in. The server calls {@link #onRequest} only for the matching ones.
+	 * It's called once when the commit is activated. The patterns could be:
+	 * <ul>
+	 * <li><code>/path/file.html</code> &#151; exactly this target</li>
+	 * <li><code>/path/*</code> &#151; the <code>/path</code> target and everything under it</li>
+	 * <li><code>*.html</code> &#151; every target ending with the suffix</li>
+	 * </ul>
+	 * The matching processors are called in the order of their priorities ({@link #getPriority()}).
+	 * The ones with the same priority are called in this order: the exact ones, the prefix ones (longest first),
+	 * the suffix ones (longest first) and the ones without patterns
+	 * @return The patterns or <code>null</code> if the processor should be called for every request
+	 */
+	public String[] getPatterns() {
+		return null;
+	}
 }
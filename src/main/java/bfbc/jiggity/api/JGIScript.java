@@ -1,5 +1,9 @@
 package bfbc.jiggity.api;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -11,4 +15,51 @@ public class JGIScript {
 	public void onExecute(String target, HttpServletRequest request, HttpServletResponse response) throws JGIException {
 		throw new JGIClientException(Code.BAD_REQUEST, "This file (" + target + ") can't be requested this way. Maybe it should be hidden");
 	}
+
+	/**
+	 * The asynchronous variant of {@link #onExecute}. The server calls this function, the default one calls
+	 * {@link #onExecute} and returns a completed stage.
+	 *
+	 * A script that doesn't want to hold the thread (long polling, waiting for other services, streaming with a
+	 * {@link javax.servlet.WriteListener}) returns a stage that completes when the response is written.
+	 * The server keeps the request open till then and finishes it itself, the script shouldn't call
+	 * {@link AsyncContext#complete()}. If the stage completes exceptionally, the error response is sent
+	 * (if nothing is sent yet). The stage has to complete sometime, the commit isn't unloaded till then
+	 * @return The stage completing when the response is written
+	 */
+	public CompletionStage<Void> onExecuteAsync(String target, HttpServletRequest request, HttpServletResponse response) throws JGIException {
+		onExecute(target, request, response);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Puts the request into the asynchronous mode (needed for {@link javax.servlet.WriteListener} and
+	 * {@link javax.servlet.ReadListener}). The request doesn't time out, unless the timeout is set for the returned context
+	 * @return The context of the request (the same one if it's already asynchronous)
+	 */
+	protected AsyncContext startAsync(HttpServletRequest request) {
+		if (request.isAsyncStarted()) {
+			return request.getAsyncContext();
+		}
+		AsyncContext async = request.startAsync();
+		async.setTimeout(0);
+		return async;
+	}
+
+	/**
+	 * The order the server tries the processors and the exception handlers in. The higher priority goes first,
+	 * the ones with equal priorities are ordered by the class name. It's called once when the commit is activated
+	 * @return The priority, <code>0</code> by default
+	 */
+	public int getPriority() {
+		return 0;
+	}
+
+	/**
+	 * This function is called by the server when the commit the script is compiled from isn't served anymore
+	 * and all the requests to it are finished. The script should release everything it holds
+	 * (threads, connections and so on), so its classes could be unloaded
+	 */
+	public void onDestroy() {
+	}
 }
@@ -0,0 +1,342 @@
+package bfbc.jiggity.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Contents of the static files inflated from the git object database.
+ *
+ * The cache is keyed by blob id. A blob never changes, so the cached contents never become stale
+ * and stay valid across the commits. The total size of the cached contents is limited,
+ * the least recently used blobs are evicted first.
+ *
+ * The contents are kept in read-only {@link ByteBuffer}s, so they could be sent to the client without copying.
+ * Depending on the {@link Storage} the buffers live on the heap, in direct memory or in memory-mapped spill files.
+ *
+ * Besides the contents themselves, the cache keeps the compressed variants of the blobs,
+ * so every blob is compressed only once while it stays in the cache
+ */
+public class BlobCache {
+
+	private static Logger logger = LoggerFactory.getLogger(BlobCache.class);
+
+	public enum Storage {
+		/**
+		 * The contents are kept in byte arrays on the heap
+		 */
+		HEAP,
+		/**
+		 * The contents are kept in direct buffers out of the heap, so they don't add to the GC pauses
+		 */
+		DIRECT,
+		/**
+		 * Every blob is written to a file in the spill directory and mapped into memory.
+		 * The OS page cache holds the contents, the heap holds nothing
+		 */
+		MAPPED
+	}
+
+	public enum Encoding {
+		IDENTITY(""),
+		GZIP(".gz");
+
+		private final String spillFileSuffix;
+
+		Encoding(String spillFileSuffix) {
+			this.spillFileSuffix = spillFileSuffix;
+		}
+	}
+
+	private static final class Key {
+		private final ObjectId blobId;
+		private final Encoding encoding;
+
+		private Key(ObjectId blobId, Encoding encoding) {
+			this.blobId = blobId;
+			this.encoding = encoding;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Key) {
+				Key other = (Key) obj;
+				return blobId.equals(other.blobId) && encoding == other.encoding;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return blobId.hashCode() * 31 + encoding.ordinal();
+		}
+	}
+
+	private static final String SPILL_FILE_SUFFIX = ".blob";
+
+	private final long maxSize;
+	private final long maxObjectSize;
+	private final Storage storage;
+	private final File spillDir;
+
+	private final LinkedHashMap<Key, ByteBuffer> blobs = new LinkedHashMap<>(16, 0.75f, true);
+	private long size = 0;
+
+	/**
+	 * The files of the {@link Storage#MAPPED} blobs by their mappings
+	 */
+	private final IdentityHashMap<ByteBuffer, File> spillFiles = new IdentityHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxSize the maximum total size of the cached blobs in bytes. <code>0</code> disables the cache
+	 * @param maxObjectSize the blobs larger than this size aren't cached
+	 * @param storage where the cached contents are kept
+	 * @param spillDir the directory for the spill files of the {@link Storage#MAPPED} storage
+	 * @throws IOException if the spill directory can't be created
+	 */
+	public BlobCache(long maxSize, long maxObjectSize, Storage storage, File spillDir) throws IOException {
+		this.maxSize = maxSize;
+		this.maxObjectSize = Math.min(maxObjectSize, maxSize);
+		this.storage = storage;
+		this.spillDir = spillDir;
+
+		if (storage == Storage.MAPPED) {
+			Files.createDirectories(spillDir.toPath());
+			// Spill files left by the previous run aren't in the cache, removing them
+			File[] stale = spillDir.listFiles();
+			if (stale != null) {
+				for (File f : stale) {
+					if (f.getName().endsWith(SPILL_FILE_SUFFIX)) f.delete();
+				}
+			}
+			logger.info("Blob cache spill directory: " + spillDir.getAbsolutePath());
+		}
+	}
+
+	public BlobCache(long maxSize, long maxObjectSize) throws IOException {
+		this(maxSize, maxObjectSize, Storage.HEAP, null);
+	}
+
+	/**
+	 * @return <code>true</code> if the blob of this size could be cached
+	 */
+	public boolean accepts(long blobSize) {
+		return blobSize <= maxObjectSize && blobSize <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return A read-only buffer with the contents of the blob or <code>null</code> if the blob isn't cached.
+	 * The buffer is not shared, the caller can change its position
+	 */
+	public ByteBuffer get(ObjectId blobId) {
+		return get(new Key(blobId, Encoding.IDENTITY));
+	}
+
+	private ByteBuffer get(Key key) {
+		ByteBuffer contents;
+		synchronized (this) {
+			contents = blobs.get(key);
+		}
+		return contents != null ? contents.duplicate() : null;
+	}
+
+	/**
+	 * Returns the contents of the blob, loading them from the object database if they aren't cached yet
+	 * @param blobId the blob to load
+	 * @param reader the reader used if the blob isn't in the cache
+	 * @return A read-only buffer with the contents of the blob or <code>null</code> if the blob is too big to be cached.
+	 * The buffer is not shared, the caller can change its position
+	 * @throws IOException if the blob can't be loaded
+	 */
+	public ByteBuffer load(ObjectId blobId, ObjectReader reader) throws IOException {
+		return load(new Key(blobId, Encoding.IDENTITY), reader);
+	}
+
+	/**
+	 * Returns the gzipped contents of the blob, compressing them if they aren't cached yet
+	 * @param blobId the blob to load
+	 * @param reader the reader used if the blob isn't in the cache
+	 * @return A read-only buffer with the compressed contents or <code>null</code> if the blob is too big to be cached.
+	 * The buffer is not shared, the caller can change its position
+	 * @throws IOException if the blob can't be loaded
+	 */
+	public ByteBuffer loadGzipped(ObjectId blobId, ObjectReader reader) throws IOException {
+		return load(new Key(blobId, Encoding.GZIP), reader);
+	}
+
+	private ByteBuffer load(Key key, ObjectReader reader) throws IOException {
+		ByteBuffer contents = get(key);
+		if (contents != null) {
+			hits.incrementAndGet();
+			return contents;
+		}
+
+		misses.incrementAndGet();
+		byte[] bytes;
+		if (key.encoding == Encoding.IDENTITY) {
+			bytes = inflate(key.blobId, reader);
+		} else {
+			bytes = compress(key.blobId, reader);
+		}
+		if (bytes == null) {
+			return null;
+		}
+
+		contents = store(key, bytes);
+		put(key, contents);
+		return contents.duplicate();
+	}
+
+	/**
+	 * @return The contents of the blob or <code>null</code> if the blob is too big to be cached
+	 */
+	private byte[] inflate(ObjectId blobId, ObjectReader reader) throws IOException {
+		ObjectLoader loader = reader.open(blobId, Constants.OBJ_BLOB);
+		if (!accepts(loader.getSize())) {
+			return null;
+		}
+
+		// Inflating outside of the lock. Two threads could load the same blob at the same time, that's harmless
+		try {
+			return loader.getCachedBytes();
+		} catch (LargeObjectException e) {
+			return null;
+		}
+	}
+
+	private byte[] compress(ObjectId blobId, ObjectReader reader) throws IOException {
+		// Compressing the cached contents if there are some, not to inflate the blob once more
+		ByteBuffer identity = get(new Key(blobId, Encoding.IDENTITY));
+		InputStream in;
+		if (identity != null) {
+			in = new ByteBufferInputStream(identity);
+		} else {
+			byte[] bytes = inflate(blobId, reader);
+			if (bytes == null) return null;
+			in = new ByteArrayInputStream(bytes);
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(baos)) {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				gzip.write(buf, 0, n);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	private ByteBuffer store(Key key, byte[] bytes) throws IOException {
+		switch (storage) {
+		case DIRECT:
+			ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+			direct.put(bytes);
+			direct.flip();
+			return direct.asReadOnlyBuffer();
+
+		case MAPPED:
+			// Every mapping has a file of its own, so the concurrent loads and evictions of the same blob don't touch it
+			File spillFile = File.createTempFile(key.blobId.getName() + key.encoding.spillFileSuffix + "-", SPILL_FILE_SUFFIX, spillDir);
+			try {
+				Files.write(spillFile.toPath(), bytes);
+				MappedByteBuffer mapped;
+				try (FileChannel channel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ)) {
+					// The mapping stays valid after the channel is closed
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes.length);
+				}
+				synchronized (this) {
+					spillFiles.put(mapped, spillFile);
+				}
+				return mapped;
+			} catch (IOException | RuntimeException e) {
+				spillFile.delete();
+				throw e;
+			}
+
+		default:
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Deletes the file of the evicted or replaced mapping. The requests that are still sending the blob
+	 * keep the mapping, the file isn't needed for it
+	 */
+	private void deleteSpillFile(ByteBuffer contents) {
+		File spillFile = spillFiles.remove(contents);
+		if (spillFile != null) spillFile.delete();
+	}
+
+	private synchronized void put(Key key, ByteBuffer contents) {
+		ByteBuffer old = blobs.put(key, contents);
+		if (old != null) {
+			size -= old.capacity();
+			deleteSpillFile(old);
+		}
+		size += contents.capacity();
+
+		Iterator<Map.Entry<Key, ByteBuffer>> it = blobs.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<Key, ByteBuffer> eldest = it.next();
+			size -= eldest.getValue().capacity();
+			it.remove();
+			evictions.incrementAndGet();
+			deleteSpillFile(eldest.getValue());
+			logger.debug("Evicted blob " + eldest.getKey().blobId.getName() + " (" + eldest.getKey().encoding + ") from the cache");
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getCount() {
+		return blobs.size();
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+}
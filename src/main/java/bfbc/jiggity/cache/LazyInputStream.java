@@ -0,0 +1,52 @@
+package bfbc.jiggity.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream that is opened only when it's read for the first time. The processors that
+ * only check whether a file exists don't load it from the object database this way
+ */
+public class LazyInputStream extends InputStream {
+
+	public interface Opener {
+		InputStream open() throws IOException;
+	}
+
+	private final Opener opener;
+	private InputStream stream;
+
+	public LazyInputStream(Opener opener) {
+		this.opener = opener;
+	}
+
+	private InputStream stream() throws IOException {
+		if (stream == null) stream = opener.open();
+		return stream;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return stream().read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		return stream().read(b, off, len);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		return stream().skip(n);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return stream().available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (stream != null) stream.close();
+	}
+}
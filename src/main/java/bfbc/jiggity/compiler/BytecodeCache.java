@@ -0,0 +1,198 @@
+package bfbc.jiggity.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bfbc.jiggity.compiler.JavaCompilerTool.SourceInMemory;
+import bfbc.jiggity.compiler.JavaCompilerTool.TargetClassDescriptor;
+import bfbc.jiggity.compiler.JavaCompilerTool.TargetClassLoader;
+
+/**
+ * Compiled classes saved on the disk, so the server doesn't compile the commits it has already seen
+ * when it's restarted.
+ *
+ * The classes of every compilation are saved in a separate file named by a hash of the sources (their paths and ids),
+ * the compiler version, the compiler options and the class path. Any change of them makes a new key,
+ * so the saved classes never have to be invalidated. The least recently used files are removed
+ * when there are more than the maximum number of them
+ */
+public class BytecodeCache {
+
+	private static Logger logger = LoggerFactory.getLogger(BytecodeCache.class);
+
+	private static final String FILE_SUFFIX = ".classes";
+	private static final int FORMAT_VERSION = 1;
+	private static final String COMPILER_MESSAGES = "org.eclipse.jdt.internal.compiler.batch.messages";
+
+	private final File dir;
+	private final int maxEntries;
+	private final String environment;
+
+	/**
+	 * @param dir the directory for the cache files
+	 * @param maxEntries the maximum number of the compilations kept
+	 * @throws IOException if the directory can't be created
+	 */
+	public BytecodeCache(File dir, int maxEntries) throws IOException {
+		this.dir = dir;
+		this.maxEntries = maxEntries;
+		Files.createDirectories(dir.toPath());
+
+		String compilerVersion;
+		try {
+			compilerVersion = ResourceBundle.getBundle(COMPILER_MESSAGES).getString("compiler.version");
+		} catch (MissingResourceException e) {
+			compilerVersion = "unknown";
+		}
+		this.environment = FORMAT_VERSION + "\n" + compilerVersion + "\n" + JavaCompilerTool.OPTIONS + "\n"
+				+ System.getProperty("java.specification.version") + "\n" + System.getProperty("java.class.path");
+		logger.info("Bytecode cache directory: " + dir.getAbsolutePath() + " (compiler " + compilerVersion + ")");
+	}
+
+	private String key(Collection<SourceInMemory> sourceClasses) {
+		List<SourceInMemory> sorted = new ArrayList<SourceInMemory>(sourceClasses);
+		Collections.sort(sorted, new Comparator<SourceInMemory>() {
+			@Override
+			public int compare(SourceInMemory o1, SourceInMemory o2) {
+				return o1.filePath.compareTo(o2.filePath);
+			}
+		});
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(environment.getBytes(StandardCharsets.UTF_8));
+			for (SourceInMemory scls : sorted) {
+				digest.update(("\0" + scls.filePath + "\0").getBytes(StandardCharsets.UTF_8));
+				// The id of the source (its blob id) is enough if it's known
+				String source = scls.sourceId != null ? scls.sourceId : scls.sourceCode;
+				digest.update(source.getBytes(StandardCharsets.UTF_8));
+			}
+
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private File file(String key) {
+		return new File(dir, key + FILE_SUFFIX);
+	}
+
+	/**
+	 * @return The class loader with the saved classes of the sources or <code>null</code> if they aren't saved
+	 */
+	public TargetClassLoader load(ClassLoader baseClassLoader, Collection<SourceInMemory> sourceClasses) {
+		File file = file(key(sourceClasses));
+		if (!file.exists()) {
+			return null;
+		}
+
+		TargetClassLoader cl = new TargetClassLoader(baseClassLoader);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unknown format");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String filePath = in.readUTF();
+				String className = in.readUTF();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				cl.addClass(new TargetClassDescriptor(filePath, className), bytes);
+			}
+		} catch (IOException e) {
+			logger.warn("Can't read the saved classes from " + file + ". Removing it", e);
+			file.delete();
+			return null;
+		}
+
+		for (SourceInMemory scls : sourceClasses) {
+			cl.addSource(scls.filePath, scls.sourceCode);
+		}
+		// The file is used, so it's removed among the last ones
+		file.setLastModified(System.currentTimeMillis());
+		return cl;
+	}
+
+	/**
+	 * Saves the classes compiled from the sources
+	 */
+	public void store(Collection<SourceInMemory> sourceClasses, TargetClassLoader cl) {
+		File file = file(key(sourceClasses));
+		try {
+			// Writing to a temporary file first, so a crash never leaves a half-written one
+			File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+					out.writeInt(FORMAT_VERSION);
+					out.writeInt(cl.size());
+					for (TargetClassDescriptor tcd : cl.nameSet()) {
+						byte[] bytes = cl.getBytes(tcd);
+						out.writeUTF(tcd.filePath);
+						out.writeUTF(tcd.className);
+						out.writeInt(bytes.length);
+						out.write(bytes);
+					}
+				}
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmpFile.delete();
+			}
+			logger.debug("Saved " + cl.size() + " classes to " + file);
+		} catch (IOException e) {
+			logger.warn("Can't save the compiled classes to " + file, e);
+			return;
+		}
+
+		removeOldest();
+	}
+
+	private void removeOldest() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+
+		List<File> saved = new ArrayList<File>();
+		for (File f : files) {
+			if (f.getName().endsWith(FILE_SUFFIX)) saved.add(f);
+		}
+		if (saved.size() <= maxEntries) return;
+
+		File[] sorted = saved.toArray(new File[saved.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return Long.compare(o1.lastModified(), o2.lastModified());
+			}
+		});
+		for (int i = 0; i < sorted.length - maxEntries; i++) {
+			logger.debug("Removing the saved classes " + sorted[i]);
+			sorted[i].delete();
+		}
+	}
+}
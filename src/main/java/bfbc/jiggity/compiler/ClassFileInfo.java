@@ -0,0 +1,129 @@
+package bfbc.jiggity.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What the compiler needs to know about a compiled class to decide if it should be recompiled
+ * when the other sources change. It's read from the constant pool and the fields of the class file.
+ *
+ * The references are collected generously: every class name and every type in the descriptors
+ * and the signatures counts. An extra reference only makes an unchanged class recompile,
+ * a missed one would leave it linked against a class that doesn't exist anymore
+ */
+public class ClassFileInfo {
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private final Set<String> references;
+	private final boolean declaresConstants;
+
+	private ClassFileInfo(Set<String> references, boolean declaresConstants) {
+		this.references = references;
+		this.declaresConstants = declaresConstants;
+	}
+
+	/**
+	 * @param internalName the class name with '/' as the package separator
+	 */
+	public boolean references(String internalName) {
+		return references.contains(internalName);
+	}
+
+	/**
+	 * @return <code>true</code> if the class has constant fields. The compiler inlines them into the classes
+	 * that use them, so nothing in the using class refers to the declaring one
+	 */
+	public boolean declaresConstants() {
+		return declaresConstants;
+	}
+
+	private static void addDescriptorTypes(String s, Set<String> references) {
+		int start = s.indexOf('L');
+		while (start != -1) {
+			int end = s.indexOf(';', start);
+			if (end == -1) break;
+			String name = s.substring(start + 1, end);
+			// Generic signatures (like "Ljava/util/List<Lpkg/Item;>;") are cut at the type arguments
+			int generic = name.indexOf('<');
+			if (generic != -1) name = name.substring(0, generic);
+			references.add(name);
+			start = s.indexOf('L', start + 1);
+		}
+	}
+
+	public static ClassFileInfo read(byte[] classBytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classBytes));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a class file");
+		}
+		in.readUnsignedShort();	// minor version
+		in.readUnsignedShort();	// major version
+
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		Set<String> references = new HashSet<>();
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1:		// Utf8
+				utf8[i] = in.readUTF();
+				// Class names, descriptors and signatures are all stored as Utf8
+				references.add(utf8[i]);
+				addDescriptorTypes(utf8[i], references);
+				break;
+			case 7:		// Class
+			case 8:		// String
+			case 16:	// MethodType
+			case 19:	// Module
+			case 20:	// Package
+				in.skipBytes(2);
+				break;
+			case 15:	// MethodHandle
+				in.skipBytes(3);
+				break;
+			case 3:		// Integer
+			case 4:		// Float
+			case 9:		// Fieldref
+			case 10:	// Methodref
+			case 11:	// InterfaceMethodref
+			case 12:	// NameAndType
+			case 17:	// Dynamic
+			case 18:	// InvokeDynamic
+				in.skipBytes(4);
+				break;
+			case 5:		// Long
+			case 6:		// Double
+				in.skipBytes(8);
+				i++;	// takes two entries
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+
+		in.readUnsignedShort();	// access flags
+		in.readUnsignedShort();	// this class
+		in.readUnsignedShort();	// super class
+		int interfaces = in.readUnsignedShort();
+		in.skipBytes(interfaces * 2);
+
+		boolean declaresConstants = false;
+		int fields = in.readUnsignedShort();
+		for (int i = 0; i < fields; i++) {
+			in.skipBytes(6);	// access flags, name, descriptor
+			int attributes = in.readUnsignedShort();
+			for (int j = 0; j < attributes; j++) {
+				String name = utf8[in.readUnsignedShort()];
+				int length = in.readInt();
+				in.skipBytes(length);
+				if ("ConstantValue".equals(name)) declaresConstants = true;
+			}
+		}
+
+		return new ClassFileInfo(references, declaresConstants);
+	}
+}
@@ -1,33 +1,50 @@
 package bfbc.jiggity.compiler;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.Writer;
-import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-
-import javax.tools.Diagnostic;
-import javax.tools.DiagnosticListener;
-import javax.tools.FileObject;
-import javax.tools.ForwardingJavaFileManager;
-import javax.tools.JavaCompiler;
-import javax.tools.JavaFileManager;
-import javax.tools.JavaFileObject;
-import javax.tools.SimpleJavaFileObject;
-import javax.tools.StandardJavaFileManager;
-
-import org.eclipse.jdt.internal.compiler.tool.EclipseCompiler;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.Compiler;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblem;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,14 +52,50 @@ public class JavaCompilerTool {
 
 	private static Logger logger = LoggerFactory.getLogger(JavaCompilerTool.class);
 
+	/**
+	 * The options the compiler is called with (the rest are the defaults of ECJ)
+	 */
+	static final Map<String, String> OPTIONS;
+
+	static {
+		Map<String, String> options = new TreeMap<String, String>();
+		options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_6);
+		options.put(CompilerOptions.OPTION_Source, CompilerOptions.VERSION_1_6);
+		options.put(CompilerOptions.OPTION_TargetPlatform, CompilerOptions.VERSION_1_6);
+		OPTIONS = Collections.unmodifiableMap(options);
+	}
+
+	/**
+	 * The fewest sources that are split into the independent groups compiled in parallel
+	 */
+	static final int PARALLEL_MIN_SOURCES = 32;
+
+	private static final int COMPILER_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final Pattern PACKAGE_DECLARATION = Pattern.compile("^\\s*package\\s+([\\w$.]+)\\s*;", Pattern.MULTILINE);
+	/**
+	 * A qualified name like <code>a.b.C</code>, <code>a . b</code> or <code>a.b.*</code>
+	 */
+	private static final Pattern QUALIFIED_NAME = Pattern.compile("[\\w$]+(?:\\s*\\.\\s*(?:[\\w$]+|\\*))+");
+	private static final Pattern SPACES = Pattern.compile("\\s+");
+
 	public static class SourceInMemory {
 		public final String filePath;
 		public final String sourceCode;
+		/**
+		 * Identifies the contents of the source (like a git blob id). Could be <code>null</code>
+		 */
+		public final String sourceId;
 
-		public SourceInMemory(String filePath, String sourceCode) {
+		public SourceInMemory(String filePath, String sourceCode, String sourceId) {
 			super();
 			this.filePath = filePath;
 			this.sourceCode = sourceCode;
+			this.sourceId = sourceId;
+		}
+
+		public SourceInMemory(String filePath, String sourceCode) {
+			this(filePath, sourceCode, null);
 		}
 	}
 
@@ -74,17 +127,35 @@ public class JavaCompilerTool {
 
 	public static class TargetClassLoader extends ClassLoader {
 
-		private Map<TargetClassDescriptor, MemoryByteCode> classes = new HashMap<TargetClassDescriptor, MemoryByteCode>();
+		static {
+			// The classes of a commit are loaded by many request threads at once
+			ClassLoader.registerAsParallelCapable();
+		}
+
+		private Map<TargetClassDescriptor, byte[]> classes = new ConcurrentHashMap<TargetClassDescriptor, byte[]>();
+		
+		/**
+		 * The same classes indexed by the binary name (like <code>pkg.Outer$Inner</code>)
+		 */
+		private Map<String, byte[]> classesByName = new ConcurrentHashMap<String, byte[]>();
+		
+		/**
+		 * The classes compiled from every source file
+		 */
+		private ConcurrentHashMap<String, List<TargetClassDescriptor>> classesByFile = new ConcurrentHashMap<String, List<TargetClassDescriptor>>();
+		
+		/**
+		 * The sources the classes are compiled from (by file path). The next compilation compares
+		 * its sources with them to find out which classes could be reused
+		 */
+		private Map<String, String> sources = new ConcurrentHashMap<String, String>();
 
 		@Override
 		public InputStream getResourceAsStream(String name) {
-			if (name.endsWith(".class"))
-				name = name.substring(0, name.length() - ".class".length());
-			for (TargetClassDescriptor tcd : classes.keySet()) {
-				if (tcd.className.equals(name.replace('/', '.'))) {
-
-					ByteArrayInputStream bais = new ByteArrayInputStream(classes.get(tcd).getBytes());
-					return bais;
+			if (name.endsWith(".class")) {
+				byte[] bytes = classesByName.get(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+				if (bytes != null) {
+					return new ByteArrayInputStream(bytes);
 				}
 			}
 			return super.getResourceAsStream(name);
@@ -92,27 +163,50 @@ public class JavaCompilerTool {
 
 		@Override
 		protected Class<?> findClass(String name) throws ClassNotFoundException {
-			MemoryByteCode mbc = null; // classes.get(name);
-			for (TargetClassDescriptor tcd : classes.keySet()) {
-				if (tcd.className.equals(name.replace('/', '.'))) {
-					mbc = classes.get(tcd);
-					break;
-				}
-			}
-
-			if (mbc == null) {
+			byte[] bytes = classesByName.get(name);
+			if (bytes == null) {
 				return super.findClass(name);
 			}
 
-			return defineClass(name.replace('/', '.'), mbc.getBytes(), 0, mbc.getBytes().length);
+			return defineClass(name, bytes, 0, bytes.length);
 		}
 
 		public TargetClassLoader(ClassLoader parent) {
 			super(parent);
 		}
 
-		public void addClass(TargetClassDescriptor key, MemoryByteCode mbc) {
-			classes.put(key, mbc);
+		/**
+		 * @param bytes The bytecode. The array is kept as it is, it shouldn't be changed after
+		 */
+		public void addClass(TargetClassDescriptor key, byte[] bytes) {
+			classes.put(key, bytes);
+			classesByName.put(key.className, bytes);
+			List<TargetClassDescriptor> fileClasses = classesByFile.get(key.filePath);
+			if (fileClasses == null) {
+				fileClasses = new CopyOnWriteArrayList<TargetClassDescriptor>();
+				List<TargetClassDescriptor> existing = classesByFile.putIfAbsent(key.filePath, fileClasses);
+				if (existing != null) fileClasses = existing;
+			}
+			fileClasses.add(key);
+		}
+
+		void addSource(String filePath, String sourceCode) {
+			sources.put(filePath, sourceCode);
+		}
+
+		/**
+		 * @return The bytecode. The array is shared, it shouldn't be changed
+		 */
+		public byte[] getBytes(TargetClassDescriptor key) {
+			return classes.get(key);
+		}
+
+		/**
+		 * @return The classes compiled from the source file (the nested and the local ones included)
+		 */
+		public List<TargetClassDescriptor> classesOf(String filePath) {
+			List<TargetClassDescriptor> fileClasses = classesByFile.get(filePath);
+			return fileClasses != null ? Collections.unmodifiableList(fileClasses) : Collections.<TargetClassDescriptor>emptyList();
 		}
 
 		public boolean containsKey(Object key) {
@@ -133,122 +227,414 @@ public class JavaCompilerTool {
 
 	}
 
-	public static TargetClassLoader compile(ClassLoader baseClassLoader, Collection<SourceInMemory> sourceClasses) {
-		try {
-			TargetClassLoader cl = new TargetClassLoader(baseClassLoader);
-			if (sourceClasses.size() == 0)
-				return cl;
+	/**
+	 * The types the sources are compiled against: the reused classes of the previous compilation
+	 * and the ones of the server class path
+	 */
+	private static class CompilationEnvironment implements INameEnvironment {
+		private final LibraryTypes library = LibraryTypes.get();
+
+		/**
+		 * The bytecode by the binary name like <code>pkg/Outer$Inner</code>
+		 */
+		private final Map<String, byte[]> classes;
+		private final Set<String> packages = new HashSet<String>();
+
+		CompilationEnvironment(Map<String, byte[]> classes) {
+			this.classes = classes;
+			for (String name : classes.keySet()) {
+				for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+					packages.add(name.substring(0, slash));
+				}
+			}
+		}
+
+		@Override
+		public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+			String name = CharOperation.toString(compoundTypeName).replace('.', '/');
+			byte[] bytes = classes.get(name);
+			if (bytes != null) {
+				try {
+					return new NameEnvironmentAnswer(new ClassFileReader(bytes, (name + ".class").toCharArray()), null);
+				} catch (ClassFormatException e) {
+					logger.warn("Can't read the class " + name, e);
+					return null;
+				}
+			}
+			return library.findType(compoundTypeName);
+		}
 
-			JavaCompiler javac = new EclipseCompiler();
+		@Override
+		public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+			return findType(CharOperation.arrayConcat(packageName, typeName));
+		}
 
-			StandardJavaFileManager sjfm = javac.getStandardFileManager(null, null, null);
-			SpecialJavaFileManager fileManager = new SpecialJavaFileManager(sjfm, cl);
-			List<String> options = Collections.emptyList();
+		@Override
+		public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+			String name = parentPackageName == null || parentPackageName.length == 0 ? new String(packageName)
+					: CharOperation.toString(parentPackageName).replace('.', '/') + "/" + new String(packageName);
+			return packages.contains(name) || library.isPackage(parentPackageName, packageName);
+		}
 
-			List<MemorySource> mss = new ArrayList<MemorySource>();
+		@Override
+		public void cleanup() {
+			// The library types are kept for the next compilations
+		}
+	}
+
+	private static void report(CategorizedProblem problem) {
+		String pos = new String(problem.getOriginatingFileName()) + " at line " + problem.getSourceLineNumber()
+				+ (problem instanceof DefaultProblem ? ", col " + ((DefaultProblem) problem).column : "") + ": " + problem.getMessage();
+		if (problem.isError()) {
+			logger.error("Compilation error in " + pos);
+		} else if (problem.isWarning()) {
+			logger.warn("Compilation warning in " + pos);
+		} else {
+			logger.info("Compilation note in " + pos);
+		}
+	}
+
+	/**
+	 * Runs the compiler. The classes are put into the target class loader
+	 * @param reusedClasses the bytecode of the classes the sources could refer to besides the ones from the class path
+	 * (by the binary name like <code>pkg/Outer$Inner</code>)
+	 * @param problems collects the errors and the warnings instead of logging them. Could be <code>null</code>
+	 * @return <code>true</code> if the sources are compiled successfully
+	 */
+	private static boolean runCompiler(final TargetClassLoader cl, Collection<SourceInMemory> sourceClasses, Map<String, byte[]> reusedClasses,
+			final Collection<CategorizedProblem> problems) {
+		try {
+			ICompilationUnit[] units = new ICompilationUnit[sourceClasses.size()];
+			int i = 0;
 			for (SourceInMemory scls : sourceClasses) {
-				mss.add(new MemorySource(scls.filePath, scls.sourceCode));
+				units[i++] = new CompilationUnit(scls.sourceCode.toCharArray(), scls.filePath, null);
 			}
 
-			List<MemorySource> compilationUnits = mss;
-			DiagnosticListener<? super JavaFileObject> dianosticListener = new DiagnosticListener<JavaFileObject>() {
-
+			final AtomicBoolean failed = new AtomicBoolean();
+			ICompilerRequestor requestor = new ICompilerRequestor() {
 				@Override
-				public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
-					String pos = /* diagnostic.getSource().getName() + */ " at line " + diagnostic.getLineNumber()
-							+ ", col " + diagnostic.getColumnNumber() + ": " + diagnostic.getMessage(Locale.ENGLISH);
-
-					if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
-						logger.error("Compilation error in " + pos);
-					} else if (diagnostic.getKind() == Diagnostic.Kind.WARNING) {
-						logger.warn("Compilation warning in " + pos);
-					} else if (diagnostic.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
-						logger.warn("Compilation warning in " + pos);
-					} else if (diagnostic.getKind() == Diagnostic.Kind.NOTE) {
-						logger.info("Compilation note in " + pos);
+				public void acceptResult(CompilationResult result) {
+					// The classes are bound to the sources by the same path the sources are given with
+					String filePath = new String(result.getFileName());
+					CategorizedProblem[] resultProblems = result.getProblems();
+					if (resultProblems != null) {
+						for (CategorizedProblem problem : resultProblems) {
+							if (problems != null) {
+								problems.add(problem);
+							} else {
+								report(problem);
+							}
+						}
+					}
+					if (result.hasErrors()) {
+						failed.set(true);
+						return;
+					}
+					for (ClassFile classFile : result.getClassFiles()) {
+						String className = new String(CharOperation.concatWith(classFile.getCompoundName(), '/'));
+						cl.addClass(new TargetClassDescriptor(filePath, className), classFile.getBytes());
 					}
 				}
 			};
 
-			Iterable<String> classes = null;
-			Writer out = new PrintWriter(System.err);
-
-			JavaCompiler.CompilationTask compile = javac.getTask(out, fileManager, dianosticListener, options, classes,
-					compilationUnits);
-			boolean success = compile.call();
-			if (success) {
-				return cl;
-			}
+			Compiler compiler = new Compiler(new CompilationEnvironment(reusedClasses), DefaultErrorHandlingPolicies.exitAfterAllProblems(),
+					new CompilerOptions(OPTIONS), requestor, new DefaultProblemFactory(Locale.ENGLISH));
+			// The units are parsed and resolved by a worker thread while the previous ones are generated
+			compiler.useSingleThread = COMPILER_THREADS == 1;
+			compiler.compile(units);
+			return !failed.get();
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("The compiler has failed", e);
 		}
-		return null;
+		return false;
 	}
-}
 
-class MemorySource extends SimpleJavaFileObject {
-	private String src;
+	/**
+	 * Compiles only the sources that differ from the previous compilation and the ones depending on them.
+	 * The classes of the rest are taken from the previous class loader as they are.
+	 * @return The new class loader or <code>null</code> if the sources should be compiled from scratch
+	 */
+	private static TargetClassLoader compileIncrementally(ClassLoader baseClassLoader, Collection<SourceInMemory> sourceClasses, TargetClassLoader previous) throws IOException {
+		Map<String, SourceInMemory> unchanged = new HashMap<String, SourceInMemory>();
+		List<SourceInMemory> dirty = new ArrayList<SourceInMemory>();
+		Set<String> current = new HashSet<String>();
+		for (SourceInMemory scls : sourceClasses) {
+			current.add(scls.filePath);
+			if (scls.sourceCode.equals(previous.sources.get(scls.filePath))) {
+				unchanged.put(scls.filePath, scls);
+			} else {
+				dirty.add(scls);
+			}
+		}
 
-	public MemorySource(String name, String src) {
-		super(URI.create("file:///" + name), Kind.SOURCE);
-		this.src = src;
-	}
+		// The classes compiled from the changed and the removed sources can't be reused,
+		// neither can the classes referring to them
+		Set<String> staleClasses = new HashSet<String>();
+		for (String filePath : previous.sources.keySet()) {
+			if (!unchanged.containsKey(filePath)) {
+				for (TargetClassDescriptor tcd : previous.classesOf(filePath)) {
+					if (ClassFileInfo.read(previous.getBytes(tcd)).declaresConstants()) {
+						logger.debug("The class " + tcd.className + " declares constants. They could be inlined anywhere");
+						return null;
+					}
+					staleClasses.add(tcd.className.replace('.', '/'));
+				}
+			}
+		}
 
-	public CharSequence getCharContent(boolean ignoreEncodingErrors) {
-		return src;
-	}
+		Map<TargetClassDescriptor, ClassFileInfo> reusedClasses = new HashMap<TargetClassDescriptor, ClassFileInfo>();
+		for (String filePath : unchanged.keySet()) {
+			for (TargetClassDescriptor tcd : previous.classesOf(filePath)) {
+				reusedClasses.put(tcd, ClassFileInfo.read(previous.getBytes(tcd)));
+			}
+		}
 
-	public OutputStream openOutputStream() {
-		throw new IllegalStateException();
-	}
+		boolean grown = !staleClasses.isEmpty();
+		while (grown) {
+			grown = false;
+			for (String filePath : new ArrayList<String>(unchanged.keySet())) {
+				List<TargetClassDescriptor> fileClasses = previous.classesOf(filePath);
+				boolean depends = false;
+				for (TargetClassDescriptor tcd : fileClasses) {
+					for (String stale : staleClasses) {
+						if (reusedClasses.get(tcd).references(stale)) {
+							depends = true;
+							break;
+						}
+					}
+					if (depends) break;
+				}
 
-	public InputStream openInputStream() {
-		return new ByteArrayInputStream(src.getBytes());
-	}
-}
+				if (depends) {
+					logger.debug("Recompiling " + filePath + " because it depends on the changed classes");
+					dirty.add(unchanged.remove(filePath));
+					for (TargetClassDescriptor tcd : fileClasses) {
+						if (reusedClasses.remove(tcd).declaresConstants()) {
+							logger.debug("The class " + tcd.className + " declares constants. They could be inlined anywhere");
+							return null;
+						}
+						staleClasses.add(tcd.className.replace('.', '/'));
+					}
+					grown = true;
+				}
+			}
+		}
 
-class SpecialJavaFileManager extends ForwardingJavaFileManager<JavaFileManager> {
-	private JavaCompilerTool.TargetClassLoader xcl;
+		if (reusedClasses.isEmpty() && !dirty.isEmpty()) {
+			logger.debug("None of the classes could be reused");
+			return null;
+		}
 
-	public SpecialJavaFileManager(StandardJavaFileManager sjfm, JavaCompilerTool.TargetClassLoader xcl) {
-		super(sjfm);
-		this.xcl = xcl;
-	}
+		logger.info("Compiling " + dirty.size() + " of " + sourceClasses.size() + " sources, reusing the classes of the rest");
+
+		TargetClassLoader cl = new TargetClassLoader(baseClassLoader);
+		if (!dirty.isEmpty()) {
+			Map<String, byte[]> reusedBytes = new HashMap<String, byte[]>();
+			for (TargetClassDescriptor tcd : reusedClasses.keySet()) {
+				reusedBytes.put(tcd.className.replace('.', '/'), previous.getBytes(tcd));
+			}
+			if (!runCompiler(cl, dirty, reusedBytes, null)) {
+				return null;
+			}
+		}
 
-	public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
-			FileObject sibling) throws IOException {
-		MemoryByteCode mbc = new MemoryByteCode(className);
-		String filePath = sibling.getName();
-		xcl.addClass(new JavaCompilerTool.TargetClassDescriptor(filePath, className), mbc);
-		return mbc;
+		for (TargetClassDescriptor tcd : reusedClasses.keySet()) {
+			cl.addClass(tcd, previous.getBytes(tcd));
+		}
+		for (SourceInMemory scls : sourceClasses) {
+			cl.addSource(scls.filePath, scls.sourceCode);
+		}
+		return cl;
 	}
 
-	public ClassLoader getClassLoader(Location location) {
-		return xcl;
+	public static TargetClassLoader compile(ClassLoader baseClassLoader, Collection<SourceInMemory> sourceClasses) {
+		return compile(baseClassLoader, sourceClasses, null);
 	}
-}
 
-class MemoryByteCode extends SimpleJavaFileObject {
-	private ByteArrayOutputStream baos;
+	/**
+	 * Compiles the sources into a new class loader
+	 * @param previous the class loader of the previous compilation. The classes of the sources
+	 * that haven't changed since it (and don't depend on the changed ones) are reused instead of compiling them again.
+	 * Could be <code>null</code>
+	 * @return The class loader with the compiled classes or <code>null</code> if the compilation has failed
+	 */
+	public static TargetClassLoader compile(ClassLoader baseClassLoader, Collection<SourceInMemory> sourceClasses, TargetClassLoader previous) {
+		if (previous != null) {
+			try {
+				TargetClassLoader cl = compileIncrementally(baseClassLoader, sourceClasses, previous);
+				if (cl != null) {
+					return cl;
+				}
+				logger.info("Compiling all the sources");
+			} catch (IOException e) {
+				logger.warn("Can't reuse the previously compiled classes. Compiling all the sources", e);
+			}
+		}
+
+		TargetClassLoader cl = new TargetClassLoader(baseClassLoader);
+		if (sourceClasses.size() >= PARALLEL_MIN_SOURCES && COMPILER_THREADS > 1) {
+			List<List<SourceInMemory>> groups = independentGroups(sourceClasses);
+			if (groups.size() > 1) {
+				logger.info("Compiling " + sourceClasses.size() + " sources in " + groups.size() + " independent groups");
+				if (compileInParallel(cl, groups)) {
+					for (SourceInMemory scls : sourceClasses) {
+						cl.addSource(scls.filePath, scls.sourceCode);
+					}
+					return cl;
+				}
+				if (Thread.currentThread().isInterrupted()) {
+					return null;
+				}
+				logger.info("Can't compile the sources in groups. Compiling all of them together");
+				cl = new TargetClassLoader(baseClassLoader);
+			}
+		}
 
-	public MemoryByteCode(String name) {
-		super(URI.create("byte:///" + name + ".class"), Kind.CLASS);
+		if (sourceClasses.size() > 0 && !runCompiler(cl, sourceClasses, Collections.<String, byte[]>emptyMap(), null)) {
+			return null;
+		}
+		for (SourceInMemory scls : sourceClasses) {
+			cl.addSource(scls.filePath, scls.sourceCode);
+		}
+		return cl;
 	}
 
-	public CharSequence getCharContent(boolean ignoreEncodingErrors) {
-		throw new IllegalStateException();
+	private static String packageOf(SourceInMemory scls) {
+		Matcher m = PACKAGE_DECLARATION.matcher(scls.sourceCode);
+		return m.find() ? m.group(1) : "";
 	}
 
-	public OutputStream openOutputStream() {
-		baos = new ByteArrayOutputStream();
-		return baos;
+	private static int root(int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
 	}
 
-	public InputStream openInputStream() {
-		throw new IllegalStateException();
+	/**
+	 * Splits the sources into the groups that could be compiled without each other. The sources of a package
+	 * are always in the same group and so are the packages whose qualified names are mentioned in each other's sources
+	 * (in the imports, the code, the comments...). Matching the text could only make a group bigger than necessary.
+	 * A group split wrongly (like by a name with spaces around the dots) fails to compile and then the sources
+	 * are compiled together
+	 * @return The groups, the biggest first
+	 */
+	static List<List<SourceInMemory>> independentGroups(Collection<SourceInMemory> sourceClasses) {
+		Map<String, List<SourceInMemory>> byPackage = new LinkedHashMap<String, List<SourceInMemory>>();
+		Map<SourceInMemory, String> packages = new HashMap<SourceInMemory, String>();
+		for (SourceInMemory scls : sourceClasses) {
+			String pkg = packageOf(scls);
+			packages.put(scls, pkg);
+			List<SourceInMemory> list = byPackage.get(pkg);
+			if (list == null) {
+				list = new ArrayList<SourceInMemory>();
+				byPackage.put(pkg, list);
+			}
+			list.add(scls);
+		}
+
+		Map<String, Integer> index = new HashMap<String, Integer>();
+		for (String pkg : byPackage.keySet()) {
+			index.put(pkg, index.size());
+		}
+		int[] parents = new int[index.size()];
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+		}
+
+		for (SourceInMemory scls : sourceClasses) {
+			int own = index.get(packages.get(scls));
+			Matcher m = QUALIFIED_NAME.matcher(scls.sourceCode);
+			while (m.find()) {
+				// The name itself and every prefix of it could be a package (the default one can't be referred to)
+				String name = SPACES.matcher(m.group()).replaceAll("");
+				if (name.endsWith(".*")) name = name.substring(0, name.length() - 2);
+				int end = name.indexOf('.');
+				while (true) {
+					Integer other = index.get(end >= 0 ? name.substring(0, end) : name);
+					if (other != null) {
+						parents[root(parents, other)] = root(parents, own);
+					}
+					if (end < 0) break;
+					end = name.indexOf('.', end + 1);
+				}
+			}
+		}
+
+		Map<Integer, List<SourceInMemory>> groups = new HashMap<Integer, List<SourceInMemory>>();
+		for (Map.Entry<String, List<SourceInMemory>> entry : byPackage.entrySet()) {
+			int r = root(parents, index.get(entry.getKey()));
+			List<SourceInMemory> group = groups.get(r);
+			if (group == null) {
+				group = new ArrayList<SourceInMemory>();
+				groups.put(r, group);
+			}
+			group.addAll(entry.getValue());
+		}
+
+		List<List<SourceInMemory>> res = new ArrayList<List<SourceInMemory>>(groups.values());
+		Collections.sort(res, new Comparator<List<SourceInMemory>>() {
+			@Override
+			public int compare(List<SourceInMemory> a, List<SourceInMemory> b) {
+				return b.size() - a.size();
+			}
+		});
+		return res;
 	}
 
-	public byte[] getBytes() {
-		return baos.toByteArray();
+	/**
+	 * Compiles every group by a compiler of its own, the groups are compiled at once.
+	 * The problems are logged only if all the groups are compiled
+	 * ECJ compiles the units of a task one after another, so this is the way to use several cores
+	 * @return <code>true</code> if all the groups are compiled successfully
+	 */
+	private static boolean compileInParallel(final TargetClassLoader cl, List<List<SourceInMemory>> groups) {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(groups.size(), COMPILER_THREADS), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jiggity-compiler-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Reported only if the groups are compiled, otherwise the sources are compiled together and report them again
+		final Collection<CategorizedProblem> problems = new ConcurrentLinkedQueue<CategorizedProblem>();
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (final List<SourceInMemory> group : groups) {
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return runCompiler(cl, group, Collections.<String, byte[]>emptyMap(), problems);
+					}
+				}));
+			}
+			boolean success = true;
+			for (Future<Boolean> result : results) {
+				try {
+					if (!result.get()) success = false;
+				} catch (ExecutionException e) {
+					logger.error("The compiler has failed", e.getCause());
+					success = false;
+				}
+			}
+			if (success) {
+				for (CategorizedProblem problem : problems) {
+					report(problem);
+				}
+			} else {
+				for (CategorizedProblem problem : problems) {
+					if (problem.isError()) logger.debug("Compilation error in the group of " + new String(problem.getOriginatingFileName()) + ": " + problem.getMessage());
+				}
+			}
+			return success;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			pool.shutdownNow();
+		}
 	}
 }
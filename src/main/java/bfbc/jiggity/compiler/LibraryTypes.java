@@ -0,0 +1,129 @@
+package bfbc.jiggity.compiler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The types of the server class path (the JRE, Jetty, JGit, the servlet API...) the scripts are compiled against.
+ * The jars are opened and indexed once, the types read from them are kept for all the following compilations,
+ * cause the class path doesn't change while the server is running.
+ * Could be used by several compilations at once
+ */
+class LibraryTypes {
+
+	private static Logger logger = LoggerFactory.getLogger(LibraryTypes.class);
+
+	private static LibraryTypes instance;
+
+	/**
+	 * The most of the names kept as missing. The compiler asks for many of them (like every simple name in <code>java.lang</code>),
+	 * most are the names of the scripts, so the recent ones are kept only
+	 */
+	private static final int MISSING_NAMES_MAX = 4096;
+
+	/**
+	 * Not thread safe. The jars are indexed lazily by it
+	 */
+	private final FileSystem fileSystem;
+
+	/**
+	 * The found types by the binary name like <code>java/util/Map$Entry</code>. There are no more of them than the classes of the class path
+	 */
+	private final ConcurrentHashMap<String, NameEnvironmentAnswer> types = new ConcurrentHashMap<String, NameEnvironmentAnswer>();
+
+	/**
+	 * The found packages by the name like <code>java/util</code>
+	 */
+	private final Set<String> packages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * The recently asked names of the types and the packages that aren't found. Guarded by {@link #fileSystem}
+	 */
+	private final LinkedHashMap<String, Boolean> missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MISSING_NAMES_MAX;
+		}
+	};
+
+	private LibraryTypes(String[] classPath) {
+		fileSystem = new FileSystem(classPath, null, null);
+	}
+
+	/**
+	 * The boot class path and <code>java.class.path</code>, as the compiler takes them by default
+	 */
+	private static String[] defaultClassPath() {
+		List<String> res = new ArrayList<String>();
+		List<FileSystem.Classpath> boot = new ArrayList<FileSystem.Classpath>();
+		Util.collectRunningVMBootclasspath(boot);
+		for (FileSystem.Classpath entry : boot) {
+			res.add(entry.getPath());
+		}
+		String classPath = System.getProperty("java.class.path");
+		if (classPath != null) {
+			for (String entry : classPath.split(File.pathSeparator)) {
+				if (!entry.isEmpty()) res.add(entry);
+			}
+		}
+		return res.toArray(new String[res.size()]);
+	}
+
+	static synchronized LibraryTypes get() {
+		if (instance == null) {
+			String[] classPath = defaultClassPath();
+			logger.debug("Indexing " + classPath.length + " class path entries for the compiler");
+			instance = new LibraryTypes(classPath);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return The type or <code>null</code> if it isn't found
+	 */
+	NameEnvironmentAnswer findType(char[][] compoundName) {
+		String name = CharOperation.toString(compoundName).replace('.', '/');
+		NameEnvironmentAnswer answer = types.get(name);
+		if (answer != null) return answer;
+		synchronized (fileSystem) {
+			if (missing.get(name) != null) return null;
+			answer = fileSystem.findType(compoundName);
+			if (answer == null) {
+				missing.put(name, Boolean.TRUE);
+				return null;
+			}
+		}
+		types.putIfAbsent(name, answer);
+		return answer;
+	}
+
+	boolean isPackage(char[][] parentPackageName, char[] packageName) {
+		String name = parentPackageName == null || parentPackageName.length == 0 ? new String(packageName)
+				: CharOperation.toString(parentPackageName).replace('.', '/') + "/" + new String(packageName);
+		if (packages.contains(name)) return true;
+		// The type names are kept in the same map, a package is marked by the trailing slash
+		String key = name + "/";
+		synchronized (fileSystem) {
+			if (missing.get(key) != null) return false;
+			if (!fileSystem.isPackage(parentPackageName, packageName)) {
+				missing.put(key, Boolean.TRUE);
+				return false;
+			}
+		}
+		packages.add(name);
+		return true;
+	}
+}
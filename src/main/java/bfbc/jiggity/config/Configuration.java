@@ -11,15 +11,89 @@ import org.eclipse.jetty.xml.XmlParser;
 import org.eclipse.jgit.lib.Constants;
 import org.xml.sax.SAXException;
 
+import bfbc.jiggity.ScriptExecutor;
+import bfbc.jiggity.cache.BlobCache;
+
 public class Configuration {
 	private String gitPath;
 	private boolean gitAllowStash;
 	private String gitRevStr = Constants.HEAD;
+	private long gitPollInterval = 1000;
+	private int gitKeepPrevious = 2;
 	private List<String> excludePatterns = new ArrayList<>();
+	private long cacheSize = 64L * 1024 * 1024;
+	private long cacheMaxObjectSize = 1024L * 1024;
+	private BlobCache.Storage cacheStorage = BlobCache.Storage.HEAP;
+	private String cacheSpillDir = "cache";
+	private boolean gzip = true;
+	private long gzipMinSize = 256;
+	private boolean precompress = false;
+	private boolean compilerCache = true;
+	private String compilerCacheDir = "bytecode";
+	private int compilerCacheEntries = 16;
+	private ScriptExecutor.Mode scriptsExecutor = ScriptExecutor.Mode.CONTAINER;
+	private int scriptsThreads = 200;
+	private int threadsMin = 8;
+	private int threadsMax = 200;
+	private int threadsQueue = -1;
+	private int connectorAcceptors = -1;
+	private int connectorSelectors = -1;
+	private long connectorIdleTimeout = 30000;
+	private int connectorOutputBufferSize = 32 * 1024;
+	private int connectorAcceptBacklog = 0;
+	private boolean connectorH2c = false;
+	private int connectorH2cMaxStreams = 128;
+	private boolean accessLog = false;
+	private String accessLogFile = "logs/access-yyyy_mm_dd.log";
+	private boolean accessLogExtended = true;
+	private boolean accessLogLatency = false;
+	private int accessLogRetainDays = 31;
+	private int accessLogQueue = 10000;
+	private String accessLogTimeZone = "GMT";
+	private boolean metrics = false;
+	private String metricsPath = "/jiggity/metrics";
 	
 	private String inetAddress = "0.0.0.0";
 	private String port = "8080";
 	
+	/**
+	 * Parses a size in bytes. The value could have a <code>k</code>, <code>m</code> or <code>g</code> suffix
+	 */
+	private static long parseSize(String value, String attribute, String tag) {
+		String number = value.trim().toLowerCase();
+		long multiplier = 1;
+		if (number.endsWith("k")) {
+			multiplier = 1024L;
+		} else if (number.endsWith("m")) {
+			multiplier = 1024L * 1024;
+		} else if (number.endsWith("g")) {
+			multiplier = 1024L * 1024 * 1024;
+		}
+		if (multiplier != 1) number = number.substring(0, number.length() - 1);
+		
+		try {
+			return Long.parseLong(number.trim()) * multiplier;
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid " + attribute + " attribute of <" + tag + "> tag: " + value, e);
+		}
+	}
+	
+	private static int parseInt(String value, String attribute, String tag) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid " + attribute + " attribute of <" + tag + "> tag: " + value, e);
+		}
+	}
+	
+	private static long parseLong(String value, String attribute, String tag) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid " + attribute + " attribute of <" + tag + "> tag: " + value, e);
+		}
+	}
+	
 	public Configuration(File configFile) {
 		try {
 			XmlParser xmlParser = new XmlParser();
@@ -52,6 +126,22 @@ public class Configuration {
 						if (gitRevStr != null) {
 							this.gitRevStr = gitRevStr;
 						}
+						
+						String gitPollIntervalStr = gitConf.getAttribute("poll-interval");
+						if (gitPollIntervalStr != null) {
+							this.gitPollInterval = parseLong(gitPollIntervalStr, "poll-interval", "git");
+							if (gitPollInterval <= 0) {
+								throw new ConfigurationException("Invalid poll-interval attribute of <git> tag: " + gitPollIntervalStr + " (should be positive)");
+							}
+						}
+						
+						String gitKeepPreviousStr = gitConf.getAttribute("keep-previous");
+						if (gitKeepPreviousStr != null) {
+							this.gitKeepPrevious = parseInt(gitKeepPreviousStr, "keep-previous", "git");
+							if (gitKeepPrevious < 0) {
+								throw new ConfigurationException("Invalid keep-previous attribute of <git> tag: " + gitKeepPreviousStr + " (should not be negative)");
+							}
+						}
 					} else {
 						throw new ConfigurationException("Missing <git> tag");
 					}
@@ -84,6 +174,212 @@ public class Configuration {
 								excludePatterns.add(excludeConf.getAttribute("path"));
 							}
 						}
+						
+						XmlParser.Node cacheConf = serverConf.get("cache");
+						if (cacheConf != null) {
+							String size = cacheConf.getAttribute("size");
+							if (size != null) {
+								this.cacheSize = parseSize(size, "size", "cache");
+							}
+							
+							String maxObjectSize = cacheConf.getAttribute("max-object-size");
+							if (maxObjectSize != null) {
+								this.cacheMaxObjectSize = parseSize(maxObjectSize, "max-object-size", "cache");
+							}
+							
+							String storage = cacheConf.getAttribute("storage");
+							if (storage != null) {
+								try {
+									this.cacheStorage = BlobCache.Storage.valueOf(storage.trim().toUpperCase());
+								} catch (IllegalArgumentException e) {
+									throw new ConfigurationException("Invalid storage attribute of <cache> tag: " + storage + " (should be heap, direct or mapped)", e);
+								}
+							}
+							
+							String spillDir = cacheConf.getAttribute("spill-dir");
+							if (spillDir != null) {
+								this.cacheSpillDir = spillDir;
+							}
+						}
+						
+						XmlParser.Node compressionConf = serverConf.get("compression");
+						if (compressionConf != null) {
+							String gzip = compressionConf.getAttribute("gzip");
+							if (gzip != null) {
+								this.gzip = gzip.equals("true");
+							}
+							
+							String minSize = compressionConf.getAttribute("min-size");
+							if (minSize != null) {
+								this.gzipMinSize = parseSize(minSize, "min-size", "compression");
+							}
+							
+							String precompress = compressionConf.getAttribute("precompress");
+							if (precompress != null) {
+								this.precompress = precompress.equals("true");
+							}
+						}
+						
+						XmlParser.Node compilerConf = serverConf.get("compiler");
+						if (compilerConf != null) {
+							String cache = compilerConf.getAttribute("cache");
+							if (cache != null) {
+								this.compilerCache = cache.equals("true");
+							}
+							
+							String cacheDir = compilerConf.getAttribute("cache-dir");
+							if (cacheDir != null) {
+								this.compilerCacheDir = cacheDir;
+							}
+							
+							String cacheEntries = compilerConf.getAttribute("cache-entries");
+							if (cacheEntries != null) {
+								this.compilerCacheEntries = parseInt(cacheEntries, "cache-entries", "compiler");
+							}
+						}
+						
+						XmlParser.Node scriptsConf = serverConf.get("scripts");
+						if (scriptsConf != null) {
+							String executor = scriptsConf.getAttribute("executor");
+							if (executor != null) {
+								try {
+									this.scriptsExecutor = ScriptExecutor.Mode.valueOf(executor.trim().toUpperCase());
+								} catch (IllegalArgumentException e) {
+									throw new ConfigurationException("Invalid executor attribute of <scripts> tag: " + executor + " (should be container, pool or virtual)", e);
+								}
+							}
+							
+							String threads = scriptsConf.getAttribute("threads");
+							if (threads != null) {
+								this.scriptsThreads = parseInt(threads, "threads", "scripts");
+							}
+						}
+						
+						XmlParser.Node threadsConf = serverConf.get("threads");
+						if (threadsConf != null) {
+							String min = threadsConf.getAttribute("min");
+							if (min != null) {
+								this.threadsMin = parseInt(min, "min", "threads");
+							}
+							
+							String max = threadsConf.getAttribute("max");
+							if (max != null) {
+								this.threadsMax = parseInt(max, "max", "threads");
+							}
+							
+							String queue = threadsConf.getAttribute("queue");
+							if (queue != null) {
+								this.threadsQueue = parseInt(queue, "queue", "threads");
+								if (threadsQueue < 1) {
+									throw new ConfigurationException("Invalid queue attribute of <threads> tag: " + queue + " (should be positive)");
+								}
+							}
+							
+							if (threadsMin < 1 || threadsMax < threadsMin) {
+								throw new ConfigurationException("Invalid <threads> tag: min should be positive and not greater than max");
+							}
+						}
+						
+						XmlParser.Node connectorConf = serverConf.get("connector");
+						if (connectorConf != null) {
+							String acceptors = connectorConf.getAttribute("acceptors");
+							if (acceptors != null) {
+								this.connectorAcceptors = parseInt(acceptors, "acceptors", "connector");
+							}
+							
+							String selectors = connectorConf.getAttribute("selectors");
+							if (selectors != null) {
+								this.connectorSelectors = parseInt(selectors, "selectors", "connector");
+							}
+							
+							String idleTimeout = connectorConf.getAttribute("idle-timeout");
+							if (idleTimeout != null) {
+								this.connectorIdleTimeout = parseLong(idleTimeout, "idle-timeout", "connector");
+							}
+							
+							String outputBufferSize = connectorConf.getAttribute("output-buffer-size");
+							if (outputBufferSize != null) {
+								this.connectorOutputBufferSize = (int) parseSize(outputBufferSize, "output-buffer-size", "connector");
+							}
+							
+							String acceptBacklog = connectorConf.getAttribute("accept-backlog");
+							if (acceptBacklog != null) {
+								this.connectorAcceptBacklog = parseInt(acceptBacklog, "accept-backlog", "connector");
+							}
+							
+							String h2c = connectorConf.getAttribute("h2c");
+							if (h2c != null) {
+								this.connectorH2c = h2c.equals("true");
+							}
+							
+							String h2cMaxStreams = connectorConf.getAttribute("h2c-max-streams");
+							if (h2cMaxStreams != null) {
+								this.connectorH2cMaxStreams = parseInt(h2cMaxStreams, "h2c-max-streams", "connector");
+							}
+						}
+						
+						XmlParser.Node accessLogConf = serverConf.get("access-log");
+						if (accessLogConf != null) {
+							String enabled = accessLogConf.getAttribute("enabled");
+							if (enabled != null) {
+								this.accessLog = enabled.equals("true");
+							}
+							
+							String file = accessLogConf.getAttribute("file");
+							if (file != null) {
+								this.accessLogFile = file;
+							}
+							
+							String format = accessLogConf.getAttribute("format");
+							if (format != null) {
+								if (format.equals("extended")) {
+									this.accessLogExtended = true;
+								} else if (format.equals("common")) {
+									this.accessLogExtended = false;
+								} else {
+									throw new ConfigurationException("Invalid format attribute of <access-log> tag: " + format + " (should be common or extended)");
+								}
+							}
+							
+							String latency = accessLogConf.getAttribute("latency");
+							if (latency != null) {
+								this.accessLogLatency = latency.equals("true");
+							}
+							
+							String retainDays = accessLogConf.getAttribute("retain-days");
+							if (retainDays != null) {
+								this.accessLogRetainDays = parseInt(retainDays, "retain-days", "access-log");
+							}
+							
+							String queue = accessLogConf.getAttribute("queue");
+							if (queue != null) {
+								this.accessLogQueue = parseInt(queue, "queue", "access-log");
+								if (accessLogQueue < 1) {
+									throw new ConfigurationException("Invalid queue attribute of <access-log> tag: " + queue + " (should be positive)");
+								}
+							}
+							
+							String timeZone = accessLogConf.getAttribute("timezone");
+							if (timeZone != null) {
+								this.accessLogTimeZone = timeZone;
+							}
+						}
+						
+						XmlParser.Node metricsConf = serverConf.get("metrics");
+						if (metricsConf != null) {
+							String enabled = metricsConf.getAttribute("enabled");
+							if (enabled != null) {
+								this.metrics = enabled.equals("true");
+							}
+							
+							String path = metricsConf.getAttribute("path");
+							if (path != null) {
+								if (!path.startsWith("/")) {
+									throw new ConfigurationException("Invalid path attribute of <metrics> tag: " + path + " (should start with /)");
+								}
+								this.metricsPath = path;
+							}
+						}
 					}
 				}
 				
@@ -101,6 +397,12 @@ public class Configuration {
 	public String getGitRevStr() {
 		return gitRevStr;
 	}
+	public long getGitPollInterval() {
+		return gitPollInterval;
+	}
+	public int getGitKeepPrevious() {
+		return gitKeepPrevious;
+	}
 	
 	public String getInetAddress() {
 		return inetAddress;
@@ -115,4 +417,136 @@ public class Configuration {
 	public List<String> getExcludePatterns() {
 		return Collections.unmodifiableList(excludePatterns);
 	}
+	
+	public long getCacheSize() {
+		return cacheSize;
+	}
+	public long getCacheMaxObjectSize() {
+		return cacheMaxObjectSize;
+	}
+	public BlobCache.Storage getCacheStorage() {
+		return cacheStorage;
+	}
+	public String getCacheSpillDir() {
+		return cacheSpillDir;
+	}
+	
+	public boolean isGzip() {
+		return gzip;
+	}
+	public long getGzipMinSize() {
+		return gzipMinSize;
+	}
+	public boolean isPrecompress() {
+		return precompress;
+	}
+	
+	public boolean isCompilerCache() {
+		return compilerCache;
+	}
+	public String getCompilerCacheDir() {
+		return compilerCacheDir;
+	}
+	public int getCompilerCacheEntries() {
+		return compilerCacheEntries;
+	}
+	
+	public ScriptExecutor.Mode getScriptsExecutor() {
+		return scriptsExecutor;
+	}
+	public int getScriptsThreads() {
+		return scriptsThreads;
+	}
+	
+	public int getThreadsMin() {
+		return threadsMin;
+	}
+	public int getThreadsMax() {
+		return threadsMax;
+	}
+	/**
+	 * @return The maximum number of the tasks waiting for a thread or <code>-1</code> if it's unbounded
+	 */
+	public int getThreadsQueue() {
+		return threadsQueue;
+	}
+	
+	/**
+	 * @return The number of the acceptor threads or <code>-1</code> to let Jetty choose it
+	 */
+	public int getConnectorAcceptors() {
+		return connectorAcceptors;
+	}
+	/**
+	 * @return The number of the selector threads or <code>-1</code> to let Jetty choose it
+	 */
+	public int getConnectorSelectors() {
+		return connectorSelectors;
+	}
+	public long getConnectorIdleTimeout() {
+		return connectorIdleTimeout;
+	}
+	public int getConnectorOutputBufferSize() {
+		return connectorOutputBufferSize;
+	}
+	/**
+	 * @return The accept queue size of the socket or <code>0</code> for the system's default
+	 */
+	public int getConnectorAcceptBacklog() {
+		return connectorAcceptBacklog;
+	}
+	/**
+	 * @return <code>true</code> if the connector speaks the cleartext HTTP/2 besides HTTP/1.1
+	 */
+	public boolean isConnectorH2c() {
+		return connectorH2c;
+	}
+	/**
+	 * @return The maximum number of the concurrent HTTP/2 streams of a connection
+	 */
+	public int getConnectorH2cMaxStreams() {
+		return connectorH2cMaxStreams;
+	}
+	
+	public boolean isAccessLog() {
+		return accessLog;
+	}
+	/**
+	 * @return The log file path. <code>yyyy_mm_dd</code> in it is replaced with the date, the file is rolled over daily
+	 */
+	public String getAccessLogFile() {
+		return accessLogFile;
+	}
+	/**
+	 * @return <code>true</code> for the NCSA extended format (with the referrer and the user agent),
+	 * <code>false</code> for the common one
+	 */
+	public boolean isAccessLogExtended() {
+		return accessLogExtended;
+	}
+	public boolean isAccessLogLatency() {
+		return accessLogLatency;
+	}
+	public int getAccessLogRetainDays() {
+		return accessLogRetainDays;
+	}
+	/**
+	 * @return The maximum number of the lines waiting to be written. The lines beyond it are dropped
+	 */
+	public int getAccessLogQueue() {
+		return accessLogQueue;
+	}
+	public String getAccessLogTimeZone() {
+		return accessLogTimeZone;
+	}
+	
+	public boolean isMetrics() {
+		return metrics;
+	}
+	/**
+	 * @return The path the metrics are served on. It hides the file of the site with the same path
+	 */
+	public String getMetricsPath() {
+		return metricsPath;
+	}
 }
@@ -0,0 +1,80 @@
+package bfbc.jiggity.metrics;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with logarithmic buckets (1-2-5 steps from 50 microseconds to 100 seconds).
+ * Recording is lock-free and costs a binary search and two atomic increments, so it could be done on every request
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The upper bounds of the buckets in nanoseconds. The last bucket (beyond the last bound) is unbounded
+	 */
+	static final long[] BOUNDS = new long[20];
+	/**
+	 * The bounds in seconds, as they are written
+	 */
+	private static final String[] BOUND_LABELS = new String[BOUNDS.length];
+
+	static {
+		int i = 0;
+		BOUNDS[i++] = 50000;
+		for (long decade = 100000; i < BOUNDS.length; decade *= 10) {
+			for (long step : new long[] { 1, 2, 5 }) {
+				if (i < BOUNDS.length) BOUNDS[i++] = step * decade;
+			}
+		}
+		for (i = 0; i < BOUNDS.length; i++) {
+			BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+		}
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+	private final LongAdder sum = new LongAdder();
+
+	public void record(long nanos) {
+		int bucket = Arrays.binarySearch(BOUNDS, nanos);
+		if (bucket < 0) bucket = -bucket - 1;
+		counts.incrementAndGet(bucket);
+		sum.add(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return The sum of the recorded durations in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Writes the histogram as the Prometheus <code>_bucket</code>, <code>_sum</code> and <code>_count</code> samples.
+	 * The durations are written in seconds
+	 * @param labels the labels of the samples (like <code>kind="static"</code>) or an empty string
+	 */
+	void write(StringBuilder out, String name, String labels) {
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			cumulative += counts.get(i);
+			out.append(name).append("_bucket{").append(prefix).append("le=\"").append(BOUND_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+		}
+		cumulative += counts.get(BOUNDS.length);
+		out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+
+		String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(name).append("_sum").append(braces).append(' ').append(getSum() / 1e9).append('\n');
+		out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+	}
+}
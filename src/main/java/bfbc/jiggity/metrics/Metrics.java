@@ -0,0 +1,180 @@
+package bfbc.jiggity.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import bfbc.jiggity.cache.BlobCache;
+
+/**
+ * The numbers the server collects about itself: the request durations (by the kind of the request and by the script class),
+ * the response codes, the compilations and the commit activations. They are written in the Prometheus text format
+ */
+public class Metrics {
+
+	/**
+	 * What has served the request
+	 */
+	public enum RequestKind {
+		SCRIPT, PROCESSOR, STATIC, NOT_FOUND,
+		/**
+		 * The request has failed before it was known what should serve it
+		 */
+		ERROR;
+
+		private final String label = name().toLowerCase();
+	}
+
+	/**
+	 * The duration of a single request. It's created when the request comes and finished when the response is written
+	 */
+	public class Request {
+		private final long start = System.nanoTime();
+		private RequestKind kind = RequestKind.ERROR;
+		private String scriptClass;
+
+		public void setKind(RequestKind kind) {
+			this.kind = kind;
+		}
+
+		/**
+		 * @param scriptClass the class of the script or the processor serving the request
+		 */
+		public void setScript(RequestKind kind, String scriptClass) {
+			this.kind = kind;
+			this.scriptClass = scriptClass;
+		}
+
+		public void finish(int status) {
+			long nanos = System.nanoTime() - start;
+			requests.get(kind).record(nanos);
+			if (scriptClass != null) {
+				histogram(scripts, scriptClass).record(nanos);
+			}
+			counter(responses, status).increment();
+		}
+	}
+
+	private final BlobCache blobCache;
+
+	/**
+	 * Filled in the constructor and never changed, so it's read without locking
+	 */
+	private final Map<RequestKind, LatencyHistogram> requests = new EnumMap<>(RequestKind.class);
+	private final ConcurrentMap<String, LatencyHistogram> scripts = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+
+	private final LatencyHistogram compilations = new LatencyHistogram();
+	private final LongAdder compileFailures = new LongAdder();
+	private final LongAdder bytecodeCacheHits = new LongAdder();
+	private final LongAdder bytecodeCacheMisses = new LongAdder();
+	private final LatencyHistogram activations = new LatencyHistogram();
+
+	/**
+	 * @param blobCache the cache of the static files to report. Could be <code>null</code>
+	 */
+	public Metrics(BlobCache blobCache) {
+		this.blobCache = blobCache;
+		for (RequestKind kind : RequestKind.values()) {
+			requests.put(kind, new LatencyHistogram());
+		}
+	}
+
+	private static <K> LatencyHistogram histogram(ConcurrentMap<K, LatencyHistogram> map, K key) {
+		LatencyHistogram histogram = map.get(key);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = map.putIfAbsent(key, created);
+			if (histogram == null) histogram = created;
+		}
+		return histogram;
+	}
+
+	private static <K> LongAdder counter(ConcurrentMap<K, LongAdder> map, K key) {
+		LongAdder counter = map.get(key);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = map.putIfAbsent(key, created);
+			if (counter == null) counter = created;
+		}
+		return counter;
+	}
+
+	public Request startRequest() {
+		return new Request();
+	}
+
+	public void compiled(long nanos, boolean succeeded) {
+		compilations.record(nanos);
+		if (!succeeded) compileFailures.increment();
+	}
+
+	public void bytecodeCacheLookup(boolean hit) {
+		if (hit) {
+			bytecodeCacheHits.increment();
+		} else {
+			bytecodeCacheMisses.increment();
+		}
+	}
+
+	public void activated(long nanos) {
+		activations.record(nanos);
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String type, String help, long value) {
+		header(out, name, type, help);
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * @return The metrics in the Prometheus text exposition format (version 0.0.4)
+	 */
+	public String toPrometheusText() {
+		StringBuilder out = new StringBuilder();
+
+		header(out, "jiggity_request_duration_seconds", "histogram", "Request duration by what has served the request");
+		for (Map.Entry<RequestKind, LatencyHistogram> e : requests.entrySet()) {
+			e.getValue().write(out, "jiggity_request_duration_seconds", "kind=\"" + e.getKey().label + "\"");
+		}
+
+		header(out, "jiggity_script_duration_seconds", "histogram", "Request duration by the JGI script or processor class");
+		for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(scripts).entrySet()) {
+			e.getValue().write(out, "jiggity_script_duration_seconds", "class=\"" + escape(e.getKey()) + "\"");
+		}
+
+		header(out, "jiggity_responses_total", "counter", "Responses by the status code");
+		for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(responses).entrySet()) {
+			out.append("jiggity_responses_total{code=\"").append(e.getKey()).append("\"} ").append(e.getValue().sum()).append('\n');
+		}
+
+		header(out, "jiggity_compile_duration_seconds", "histogram", "Duration of the compilations of the commits");
+		compilations.write(out, "jiggity_compile_duration_seconds", "");
+		sample(out, "jiggity_compile_failures_total", "counter", "Compilations that have failed", compileFailures.sum());
+		sample(out, "jiggity_bytecode_cache_hits_total", "counter", "Commits loaded from the bytecode cache", bytecodeCacheHits.sum());
+		sample(out, "jiggity_bytecode_cache_misses_total", "counter", "Commits not found in the bytecode cache", bytecodeCacheMisses.sum());
+
+		header(out, "jiggity_commit_activation_seconds", "histogram", "Duration of the commit activations (including the compilation)");
+		activations.write(out, "jiggity_commit_activation_seconds", "");
+
+		if (blobCache != null) {
+			sample(out, "jiggity_blob_cache_hits_total", "counter", "Static files served from the memory cache", blobCache.getHits());
+			sample(out, "jiggity_blob_cache_misses_total", "counter", "Static files read from the repository", blobCache.getMisses());
+			sample(out, "jiggity_blob_cache_evictions_total", "counter", "Static files evicted from the memory cache", blobCache.getEvictions());
+			sample(out, "jiggity_blob_cache_bytes", "gauge", "Size of the static files in the memory cache", blobCache.getSize());
+			sample(out, "jiggity_blob_cache_blobs", "gauge", "Number of the static files in the memory cache", blobCache.getCount());
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,37 @@
+package bfbc.jiggity.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Serves the metrics on the admin path. The other requests are passed to the next handlers
+ */
+public class MetricsHandler extends AbstractHandler {
+
+	private final Metrics metrics;
+	private final String path;
+
+	public MetricsHandler(Metrics metrics, String path) {
+		this.metrics = metrics;
+		this.path = path;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		if (!target.equals(path)) return;
+		baseRequest.setHandled(true);
+
+		byte[] text = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		response.setContentLength(text.length);
+		response.getOutputStream().write(text);
+	}
+}
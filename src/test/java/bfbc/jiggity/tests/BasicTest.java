@@ -2,14 +2,22 @@ package bfbc.jiggity.tests;
 
 import static bfbc.jiggity.tests.tools.Tools.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,6 +82,744 @@ public class BasicTest {
 		}
 	}
 	
+	@Test
+	public void redeployTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "redeployTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "First version" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+	
+			assertEquals("First version\n", sendGet("http://localhost:8090/test.txt").text);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Second version" });
+			tstConf.git.commit().setMessage("update").call();
+			
+			// The new commit is picked up by the ref watcher in background
+			String readTest = null;
+			for (int i = 0; i < 50; i++) {
+				readTest = sendGet("http://localhost:8090/test.txt").text;
+				if (!readTest.equals("First version\n")) break;
+				Thread.sleep(100);
+			}
+			assertEquals("Second version\n", readTest);
+		
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void brokenRedeployTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "brokenRedeployTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "First version" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<metrics enabled=\"true\" path=\"/admin/metrics\" />");
+			
+			srv.start(tstConf.rootDir);
+	
+			assertEquals("First version\n", sendGet("http://localhost:8090/test.txt").text);
+			
+			// A commit that can't be compiled is never activated
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Broken version" });
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Broken.java", new String[] { "public class Broken extends {" });
+			tstConf.git.commit().setMessage("broken").call();
+			
+			waitForMetric("jiggity_compile_failures_total 1\n");
+			assertEquals("First version\n", sendGet("http://localhost:8090/test.txt").text);
+			
+			// The fixed one is
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Fixed version" });
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Broken.java", new String[] { "public class Broken {}" });
+			tstConf.git.commit().setMessage("fixed").call();
+			
+			String readTest = null;
+			for (int i = 0; i < 50; i++) {
+				readTest = sendGet("http://localhost:8090/test.txt").text;
+				if (!readTest.equals("First version\n")) break;
+				Thread.sleep(100);
+			}
+			assertEquals("Fixed version\n", readTest);
+		
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void brokenStartupTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "brokenStartupTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			// The initial commit is served even if it can't be compiled
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Broken version" });
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Broken.java", new String[] { "public class Broken extends {" });
+			RevCommit broken = tstConf.git.commit().setMessage("broken").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<metrics enabled=\"true\" path=\"/admin/metrics\" />");
+			
+			srv.start(tstConf.rootDir);
+	
+			assertEquals("Broken version\n", sendGet("http://localhost:8090/test.txt").text);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Fixed version" });
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Broken.java", new String[] { "public class Broken {}" });
+			tstConf.git.commit().setMessage("fixed").call();
+			
+			assertEquals("Fixed version\n", waitForChange("http://localhost:8090/test.txt", "Broken version\n"));
+			
+			// Switching back compiles the broken commit again instead of reusing its snapshot, so it isn't activated
+			tstConf.git.reset().setMode(ResetType.HARD).setRef(broken.getName()).call();
+			
+			waitForMetric("jiggity_compile_failures_total 2\n");
+			assertEquals("Fixed version\n", sendGet("http://localhost:8090/test.txt").text);
+		
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	private static String[] printingScript(String className, String expression) {
+		return new String[] {
+			"import java.io.IOException;",
+			"import javax.servlet.http.*;",
+			"import bfbc.jiggity.api.exceptions.JGIException;",
+			"import bfbc.jiggity.api.exceptions.JGIServerException;",
+			"import bfbc.jiggity.api.JGIScript;",
+
+			"public class " + className + " extends JGIScript {",
+			"	@Override",
+			"	public void onExecute(String target, HttpServletRequest request, HttpServletResponse response) throws JGIException {",
+			"		try {",
+			"			response.getOutputStream().println(" + expression + ");",
+			"			response.getOutputStream().close();",
+			"		} catch (IOException e) {",
+			"			throw new JGIServerException(JGIServerException.Code.INTERNAL_ERROR, e);",
+			"		}",
+			"	}",
+			"}"
+		};
+	}
+	
+	private static String waitForChange(String url, String oldText) throws Exception {
+		String readTest = null;
+		for (int i = 0; i < 50; i++) {
+			readTest = sendGet(url).text;
+			if (!readTest.equals(oldText)) break;
+			Thread.sleep(100);
+		}
+		return readTest;
+	}
+	
+	/**
+	 * Waits till the metrics (enabled at <code>/admin/metrics</code>) contain the sample, like a failed compilation of a commit
+	 */
+	private static void waitForMetric(String sample) throws Exception {
+		String metrics = null;
+		for (int i = 0; i < 50; i++) {
+			metrics = sendGet("http://localhost:8090/admin/metrics").text;
+			if (metrics.contains(sample)) return;
+			Thread.sleep(100);
+		}
+		fail("No \"" + sample.trim() + "\" in the metrics:\n" + metrics);
+	}
+	
+	@Test
+	public void incrementalRedeployTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "incrementalRedeployTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Helper.java", new String[] { "public class Helper { public static String greeting() { return \"one\"; } }" });
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Caller.java", printingScript("Caller", "Helper.greeting()"));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Other.java", printingScript("Other", "\"other\""));
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+	
+			assertEquals("one\n", sendGet("http://localhost:8090/Caller.java").text);
+			assertEquals("other\n", sendGet("http://localhost:8090/Other.java").text);
+			
+			// The unchanged caller is recompiled, cause it depends on the changed class
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Helper.java", new String[] { "public class Helper { public static String greeting() { return \"two\"; } }" });
+			tstConf.git.commit().setMessage("helper").call();
+			
+			assertEquals("two\n", waitForChange("http://localhost:8090/Caller.java", "one\n"));
+			assertEquals("other\n", sendGet("http://localhost:8090/Other.java").text);
+			
+			// The changed caller is compiled against the reused helper class
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Caller.java", printingScript("Caller", "Helper.greeting() + \"!\""));
+			tstConf.git.commit().setMessage("caller").call();
+			
+			assertEquals("two!\n", waitForChange("http://localhost:8090/Caller.java", "two\n"));
+			assertEquals("other\n", sendGet("http://localhost:8090/Other.java").text);
+		
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	private static String[] inPackage(String packageName, String[] lines) {
+		String[] res = new String[lines.length + 1];
+		res[0] = "package " + packageName + ";";
+		System.arraycopy(lines, 0, res, 1, lines.length);
+		return res;
+	}
+	
+	@Test
+	public void parallelCompileTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "parallelCompileTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			// Enough sources to be read and compiled in parallel: the default package refers to lib,
+			// b refers to a, c imports all of util, so there are three independent groups
+			for (String pkg : new String[] { "a", "b", "c", "lib", "util" }) {
+				new File(tstConf.gitDir, pkg).mkdirs();
+			}
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "lib/Util.java", new String[] { "package lib;", "public class Util { public static String greeting() { return \"lib\"; } }" });
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Caller.java", printingScript("Caller", "lib.Util.greeting()"));
+			for (int i = 0; i < 20; i++) {
+				addFileToGitIndex(tstConf.git, tstConf.gitDir, "a/Script" + i + ".java", inPackage("a", printingScript("Script" + i, "\"a" + i + "\"")));
+				addFileToGitIndex(tstConf.git, tstConf.gitDir, "b/Script" + i + ".java", inPackage("b", printingScript("Script" + i, "a.Script" + i + ".class.getName()")));
+			}
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "util/Names.java", new String[] { "package util;", "public class Names { public static String name() { return \"util\"; } }" });
+			String[] wildcard = inPackage("c", printingScript("Wildcard", "Names.name()"));
+			wildcard[0] += " import util.*;";
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "c/Wildcard.java", wildcard);
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+	
+			assertEquals("lib\n", sendGet("http://localhost:8090/Caller.java").text);
+			assertEquals("util\n", sendGet("http://localhost:8090/c/Wildcard.java").text);
+			assertEquals("a7\n", sendGet("http://localhost:8090/a/Script7.java").text);
+			assertEquals("a.Script19\n", sendGet("http://localhost:8090/b/Script19.java").text);
+		
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void bytecodeCacheTest() throws Exception {
+		String testPrefix = "bytecodeCacheTest";
+		TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+		
+		addFileToGitIndex(tstConf.git, tstConf.gitDir, "Caller.java", printingScript("Caller", "\"cached\""));
+		tstConf.git.commit().setMessage("init").call();
+
+		createDefaultConfFile(testPrefix, tstConf.rootDir);
+		
+		JiggityServer srv = new JiggityServer();
+		try {
+			srv.start(tstConf.rootDir);
+			assertEquals("cached\n", sendGet("http://localhost:8090/Caller.java").text);
+		} finally {
+			srv.stop();
+		}
+		
+		File[] saved = new File(tstConf.rootDir, "bytecode").listFiles();
+		assertEquals(1, saved.length);
+		
+		// The restarted server takes the saved classes
+		saved[0].setLastModified(0);
+		srv = new JiggityServer();
+		try {
+			srv.start(tstConf.rootDir);
+			assertEquals("cached\n", sendGet("http://localhost:8090/Caller.java").text);
+		} finally {
+			srv.stop();
+		}
+		assertTrue(saved[0].lastModified() > 0);
+	}
+	
+	/**
+	 * Counts the destroyed scripts of {@link #unloadTest()}
+	 */
+	public static volatile int destroyed = 0;
+	
+	@Test
+	public void unloadTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "unloadTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			String[] code = new String[] {
+				"import bfbc.jiggity.api.JGIScript;",
+				"public class Destroyed extends JGIScript {",
+				"	@Override",
+				"	public void onDestroy() {",
+				"		bfbc.jiggity.tests.BasicTest.destroyed++;",
+				"	}",
+				"}"
+			};
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Destroyed.java", code);
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Version 0" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+			
+			// The active commit and 2 previous ones are kept by default
+			for (int i = 1; i <= 3; i++) {
+				addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Version " + i });
+				tstConf.git.commit().setMessage("update " + i).call();
+				assertEquals("Version " + i + "\n", waitForChange("http://localhost:8090/test.txt", "Version " + (i - 1) + "\n"));
+				
+				assertEquals(i < 3 ? 0 : 1, destroyed);
+			}
+		} finally {
+			srv.stop();
+		}
+		
+		// Everything is unloaded when the server is stopped
+		assertEquals(4, destroyed);
+	}
+	
+	private static String[] patternProcessor(String className, String patterns) {
+		return patternProcessor(className, "new String[] { " + patterns + " }", 0);
+	}
+	
+	/**
+	 * @param patternsExpression the Java expression returned by <code>getPatterns()</code>
+	 */
+	private static String[] patternProcessor(String className, String patternsExpression, int priority) {
+		return new String[] {
+			"import java.io.IOException;",
+			"import java.io.InputStream;",
+			"import javax.servlet.http.*;",
+			"import bfbc.jiggity.api.JGIProcessor;",
+			"import bfbc.jiggity.api.exceptions.JGIException;",
+			"import bfbc.jiggity.api.exceptions.JGIServerException;",
+
+			"public class " + className + " extends JGIProcessor {",
+			"	@Override",
+			"	public String[] getPatterns() {",
+			"		return " + patternsExpression + ";",
+			"	}",
+			"	@Override",
+			"	public int getPriority() {",
+			"		return " + priority + ";",
+			"	}",
+			"	@Override",
+			"	public boolean onRequest(String target, InputStream fileStream, HttpServletRequest request, HttpServletResponse response) throws JGIException {",
+			"		try {",
+			"			response.getOutputStream().println(\"" + className + " \" + target);",
+			"			response.getOutputStream().close();",
+			"			return true;",
+			"		} catch (IOException e) {",
+			"			throw new JGIServerException(JGIServerException.Code.INTERNAL_ERROR, e);",
+			"		}",
+			"	}",
+			"}"
+		};
+	}
+	
+	@Test
+	public void routesTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "routesTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Api.java", patternProcessor("Api", "\"/api/*\""));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Markdown.java", patternProcessor("Markdown", "\"*.md\""));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Exact.java", patternProcessor("Exact", "\"/api/exact.md\""));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "readme.md", new String[] { "Readme" });
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Static" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+			
+			assertEquals("Api /api\n", sendGet("http://localhost:8090/api").text);
+			assertEquals("Api /api/users/1\n", sendGet("http://localhost:8090/api/users/1").text);
+			assertEquals("Api /api/users.md\n", sendGet("http://localhost:8090/api/users.md").text);
+			assertEquals("Exact /api/exact.md\n", sendGet("http://localhost:8090/api/exact.md").text);
+			assertEquals("Markdown /readme.md\n", sendGet("http://localhost:8090/readme.md").text);
+			assertEquals("Markdown /missing.md\n", sendGet("http://localhost:8090/missing.md").text);
+			
+			// No processor matches, the file is sent as it is
+			assertEquals("Static\n", sendGet("http://localhost:8090/test.txt").text);
+			assertEquals(404, sendGet("http://localhost:8090/apix").code);
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void priorityTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "priorityTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Any.java", patternProcessor("Any", "null", 0));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "AnyFirst.java", patternProcessor("AnyFirst", "null", 5));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Text.java", patternProcessor("Text", "new String[] { \"*.txt\" }", 0));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Html.java", patternProcessor("Html", "new String[] { \"*.html\" }", 10));
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+			
+			// The higher priority goes first even if the processor is less specific
+			assertEquals("AnyFirst /test.txt\n", sendGet("http://localhost:8090/test.txt").text);
+			assertEquals("Html /test.html\n", sendGet("http://localhost:8090/test.html").text);
+			assertEquals("AnyFirst /test\n", sendGet("http://localhost:8090/test").text);
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void asyncTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "asyncTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			// Responds from another thread after the request handler has returned
+			String[] later = new String[] {
+				"import java.io.IOException;",
+				"import java.util.concurrent.CompletableFuture;",
+				"import java.util.concurrent.CompletionStage;",
+				"import javax.servlet.http.*;",
+				"import bfbc.jiggity.api.exceptions.JGIException;",
+				"import bfbc.jiggity.api.JGIScript;",
+
+				"public class Later extends JGIScript {",
+				"	@Override",
+				"	public CompletionStage<Void> onExecuteAsync(String target, HttpServletRequest request, final HttpServletResponse response) throws JGIException {",
+				"		return CompletableFuture.runAsync(new Runnable() {",
+				"			public void run() {",
+				"				try {",
+				"					response.getOutputStream().println(\"later\");",
+				"				} catch (IOException e) {",
+				"					throw new RuntimeException(e);",
+				"				}",
+				"			}",
+				"		});",
+				"	}",
+				"}"
+			};
+			
+			String[] failing = new String[] {
+				"import java.util.concurrent.CompletableFuture;",
+				"import java.util.concurrent.CompletionStage;",
+				"import javax.servlet.http.*;",
+				"import bfbc.jiggity.api.exceptions.JGIException;",
+				"import bfbc.jiggity.api.exceptions.JGIClientException;",
+				"import bfbc.jiggity.api.JGIScript;",
+
+				"public class Failing extends JGIScript {",
+				"	@Override",
+				"	public CompletionStage<Void> onExecuteAsync(String target, HttpServletRequest request, HttpServletResponse response) throws JGIException {",
+				"		final CompletableFuture<Void> res = new CompletableFuture<Void>();",
+				"		CompletableFuture.runAsync(new Runnable() {",
+				"			public void run() {",
+				"				res.completeExceptionally(new JGIClientException(JGIClientException.Code.FORBIDDEN, \"no\"));",
+				"			}",
+				"		});",
+				"		return res;",
+				"	}",
+				"}"
+			};
+			
+			// Streams the lines with the non-blocking output
+			String[] streaming = new String[] {
+				"import java.io.IOException;",
+				"import java.io.InputStream;",
+				"import java.util.concurrent.CompletableFuture;",
+				"import java.util.concurrent.CompletionStage;",
+				"import javax.servlet.ServletOutputStream;",
+				"import javax.servlet.WriteListener;",
+				"import javax.servlet.http.*;",
+				"import bfbc.jiggity.api.exceptions.JGIException;",
+				"import bfbc.jiggity.api.exceptions.JGIServerException;",
+				"import bfbc.jiggity.api.JGIProcessor;",
+
+				"public class Streaming extends JGIProcessor {",
+				"	@Override",
+				"	public String[] getPatterns() { return new String[] { \"*.stream\" }; }",
+				"	@Override",
+				"	public CompletionStage<Void> onRequestAsync(String target, InputStream fileStream, HttpServletRequest request, HttpServletResponse response) throws JGIException {",
+				"		startAsync(request);",
+				"		final CompletableFuture<Void> done = new CompletableFuture<Void>();",
+				"		try {",
+				"			final ServletOutputStream out = response.getOutputStream();",
+				"			out.setWriteListener(new WriteListener() {",
+				"				private int line = 0;",
+				"				public void onWritePossible() throws IOException {",
+				"					while (out.isReady()) {",
+				"						if (line == 3) {",
+				"							done.complete(null);",
+				"							return;",
+				"						}",
+				"						out.write((\"line \" + line++ + \"\\n\").getBytes(\"UTF-8\"));",
+				"					}",
+				"				}",
+				"				public void onError(Throwable t) {",
+				"					done.completeExceptionally(t);",
+				"				}",
+				"			});",
+				"		} catch (IOException e) {",
+				"			throw new JGIServerException(JGIServerException.Code.INTERNAL_ERROR, e);",
+				"		}",
+				"		return done;",
+				"	}",
+				"}"
+			};
+			
+			// Reads the file after the request handler has returned
+			String[] copying = new String[] {
+				"import java.io.IOException;",
+				"import java.io.InputStream;",
+				"import java.util.concurrent.CompletableFuture;",
+				"import java.util.concurrent.CompletionStage;",
+				"import javax.servlet.http.*;",
+				"import bfbc.jiggity.api.exceptions.JGIException;",
+				"import bfbc.jiggity.api.JGIProcessor;",
+
+				"public class Copying extends JGIProcessor {",
+				"	@Override",
+				"	public String[] getPatterns() { return new String[] { \"*.async\" }; }",
+				"	@Override",
+				"	public CompletionStage<Void> onRequestAsync(String target, final InputStream fileStream, HttpServletRequest request, final HttpServletResponse response) throws JGIException {",
+				"		return CompletableFuture.runAsync(new Runnable() {",
+				"			public void run() {",
+				"				try {",
+				"					Thread.sleep(200);",
+				"					byte[] buf = new byte[1024];",
+				"					int len;",
+				"					while ((len = fileStream.read(buf)) > 0) {",
+				"						response.getOutputStream().write(buf, 0, len);",
+				"					}",
+				"				} catch (IOException e) {",
+				"					throw new RuntimeException(e);",
+				"				} catch (InterruptedException e) {",
+				"					throw new RuntimeException(e);",
+				"				}",
+				"			}",
+				"		});",
+				"	}",
+				"}"
+			};
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Later.java", later);
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Failing.java", failing);
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Streaming.java", streaming);
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Copying.java", copying);
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "data.async", new String[] { "Read later" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+	
+			assertEquals("later\n", sendGet("http://localhost:8090/Later.java").text);
+			assertEquals(403, sendGet("http://localhost:8090/Failing.java").code);
+			assertEquals("line 0\nline 1\nline 2\n", sendGet("http://localhost:8090/some.stream").text);
+			assertEquals("Read later\n", sendGet("http://localhost:8090/data.async").text);
+		
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	private void scriptExecutorTest(String testPrefix, String executor) throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Async.java", printingScript("Async", "\"async: \" + request.isAsyncStarted()"));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Static" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<scripts executor=\"" + executor + "\" threads=\"2\" />");
+			
+			srv.start(tstConf.rootDir);
+			
+			// The scripts are run out of the connector's threads
+			for (int i = 0; i < 5; i++) {
+				assertEquals("async: true\n", sendGet("http://localhost:8090/Async.java").text);
+			}
+			assertEquals("Static\n", sendGet("http://localhost:8090/test.txt").text);
+			assertEquals(404, sendGet("http://localhost:8090/notfound.txt").code);
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void tunedServerTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "tunedServerTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Tuned.java", printingScript("Tuned", "\"tuned\""));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Static" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir,
+					"<threads min=\"4\" max=\"16\" queue=\"64\" />",
+					"<connector acceptors=\"1\" selectors=\"2\" idle-timeout=\"5000\" output-buffer-size=\"8k\" accept-backlog=\"128\" />");
+			
+			srv.start(tstConf.rootDir);
+			
+			for (int i = 0; i < 5; i++) {
+				assertEquals("tuned\n", sendGet("http://localhost:8090/Tuned.java").text);
+				assertEquals("Static\n", sendGet("http://localhost:8090/test.txt").text);
+			}
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void h2cTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "h2cTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Static" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<connector h2c=\"true\" />");
+			
+			srv.start(tstConf.rootDir);
+			
+			// HTTP/1.1 still works
+			assertEquals("Static\n", sendGet("http://localhost:8090/test.txt").text);
+			
+			// The server answers the HTTP/2 connection preface with its SETTINGS frame
+			try (Socket socket = new Socket("localhost", 8090)) {
+				socket.setSoTimeout(5000);
+				OutputStream out = socket.getOutputStream();
+				out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+				// An empty SETTINGS frame: the length (3 bytes), the type, the flags, the stream id (4 bytes)
+				out.write(new byte[] { 0, 0, 0, 4, 0, 0, 0, 0, 0 });
+				out.flush();
+				
+				byte[] header = new byte[9];
+				new DataInputStream(socket.getInputStream()).readFully(header);
+				assertEquals(4, header[3]);
+			}
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void accessLogTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "accessLogTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Static" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<access-log enabled=\"true\" file=\"logs/access.log\" format=\"common\" />");
+			
+			srv.start(tstConf.rootDir);
+			
+			assertEquals("Static\n", sendGet("http://localhost:8090/test.txt").text);
+			assertEquals(404, sendGet("http://localhost:8090/notfound.txt").code);
+			
+			// The lines are written by a background thread
+			File logFile = new File(tstConf.rootDir, "logs/access.log");
+			String log = "";
+			for (int i = 0; i < 50 && !log.contains("notfound.txt"); i++) {
+				Thread.sleep(100);
+				if (logFile.exists()) log = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+			}
+			assertTrue(log.contains("/test.txt HTTP/1.1\" 200"));
+			assertTrue(log.contains("/notfound.txt HTTP/1.1\" 404"));
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void metricsTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "metricsTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "Timed.java", printingScript("Timed", "\"timed\""));
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Static" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<metrics enabled=\"true\" path=\"/admin/metrics\" />");
+			
+			srv.start(tstConf.rootDir);
+			
+			assertEquals("timed\n", sendGet("http://localhost:8090/Timed.java").text);
+			assertEquals("timed\n", sendGet("http://localhost:8090/Timed.java").text);
+			assertEquals("Static\n", sendGet("http://localhost:8090/test.txt").text);
+			assertEquals(404, sendGet("http://localhost:8090/notfound.txt").code);
+			
+			// A request is counted after its response is sent, so the client could be quicker
+			String metrics = null;
+			for (int i = 0; i < 50; i++) {
+				metrics = sendGet("http://localhost:8090/admin/metrics").text;
+				if (metrics.contains("jiggity_request_duration_seconds_count{kind=\"not_found\"} 1\n")) break;
+				Thread.sleep(100);
+			}
+			assertTrue(metrics.contains("jiggity_request_duration_seconds_count{kind=\"script\"} 2\n"));
+			assertTrue(metrics.contains("jiggity_request_duration_seconds_count{kind=\"static\"} 1\n"));
+			assertTrue(metrics.contains("jiggity_request_duration_seconds_count{kind=\"not_found\"} 1\n"));
+			assertTrue(metrics.contains("jiggity_request_duration_seconds_bucket{kind=\"script\",le=\"+Inf\"} 2\n"));
+			assertTrue(metrics.contains("jiggity_script_duration_seconds_count{class=\"Timed\"} 2\n"));
+			assertTrue(metrics.contains("jiggity_responses_total{code=\"200\"} 3\n"));
+			assertTrue(metrics.contains("jiggity_responses_total{code=\"404\"} 1\n"));
+			assertTrue(metrics.contains("jiggity_compile_duration_seconds_count 1\n"));
+			assertTrue(metrics.contains("# TYPE jiggity_commit_activation_seconds histogram\n"));
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void poolExecutorTest() throws Exception {
+		scriptExecutorTest("poolExecutorTest", "pool");
+	}
+	
+	@Test
+	public void virtualExecutorTest() throws Exception {
+		// Falls back to the pool on the older Java
+		scriptExecutorTest("virtualExecutorTest", "virtual");
+	}
+	
 	@Test
 	public void scriptTest() throws Exception {
 		JiggityServer srv = new JiggityServer();
@@ -0,0 +1,241 @@
+package bfbc.jiggity.tests;
+
+import static bfbc.jiggity.tests.tools.Tools.addFileToGitIndex;
+import static bfbc.jiggity.tests.tools.Tools.createConfFile;
+import static bfbc.jiggity.tests.tools.Tools.createDefaultConfFile;
+import static bfbc.jiggity.tests.tools.Tools.createGitForServer;
+import static bfbc.jiggity.tests.tools.Tools.openGet;
+import static bfbc.jiggity.tests.tools.Tools.sendGet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bfbc.jiggity.JiggityServer;
+import bfbc.jiggity.tests.tools.TestConf;
+
+public class StaticContentTest {
+	private static Logger logger = LoggerFactory.getLogger(StaticContentTest.class);
+
+	private static File tmpDir;
+
+	static {
+		try {
+			tmpDir = Files.createTempDirectory("test-tmp-").toFile();
+			logger.info("Created test directory: " + tmpDir.getAbsolutePath());
+			tmpDir.deleteOnExit();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't create temporary directory");
+		}
+	}
+
+	private void cachedRequestTest(String testPrefix, String storage) throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			String[] lines = new String[] {
+				"This is a text file",
+				"Second line"
+			};
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", lines);
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "other.txt", new String[] { "Other file" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<cache size=\"24\" storage=\"" + storage + "\" />");
+			
+			srv.start(tstConf.rootDir);
+	
+			// The second request is served from the cache, the third one after the blob is evicted by other.txt
+			for (int i = 0; i < 2; i++) {
+				assertEquals(lines[0] + "\n" + lines[1] + "\n", sendGet("http://localhost:8090/test.txt").text);
+				assertEquals(lines[0] + "\n" + lines[1] + "\n", sendGet("http://localhost:8090/test.txt").text);
+				assertEquals("Other file\n", sendGet("http://localhost:8090/other.txt").text);
+			}
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void conditionalRequestTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "conditionalRequestTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", new String[] { "Some text" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createDefaultConfFile(testPrefix, tstConf.rootDir);
+			
+			srv.start(tstConf.rootDir);
+			
+			HttpURLConnection con = openGet("http://localhost:8090/test.txt");
+			assertEquals(200, con.getResponseCode());
+			String etag = con.getHeaderField("ETag");
+			String lastModified = con.getHeaderField("Last-Modified");
+			assertNotNull(etag);
+			assertNotNull(lastModified);
+			
+			assertEquals(304, openGet("http://localhost:8090/test.txt", "If-None-Match: " + etag).getResponseCode());
+			assertEquals(304, openGet("http://localhost:8090/test.txt", "If-None-Match: \"other\", W/" + etag).getResponseCode());
+			assertEquals(200, openGet("http://localhost:8090/test.txt", "If-None-Match: \"other\"").getResponseCode());
+			assertEquals(304, openGet("http://localhost:8090/test.txt", "If-Modified-Since: " + lastModified).getResponseCode());
+			assertEquals(200, openGet("http://localhost:8090/test.txt", "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT").getResponseCode());
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	private static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			baos.write(buf, 0, n);
+		}
+		in.close();
+		return baos.toString("UTF-8");
+	}
+	
+	@Test
+	public void gzipRequestTest() throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			String testPrefix = "gzipRequestTest";
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			String[] lines = new String[100];
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < lines.length; i++) {
+				lines[i] = "This is the line number " + i;
+				expected.append(lines[i]).append('\n');
+			}
+			
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.txt", lines);
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<compression gzip=\"true\" precompress=\"true\" />");
+			
+			srv.start(tstConf.rootDir);
+			
+			{
+				HttpURLConnection con = openGet("http://localhost:8090/test.txt", "Accept-Encoding: deflate, gzip;q=0.8");
+				assertEquals(200, con.getResponseCode());
+				assertEquals("gzip", con.getHeaderField("Content-Encoding"));
+				assertEquals("Accept-Encoding", con.getHeaderField("Vary"));
+				assertEquals(expected.toString(), readAll(new GZIPInputStream(con.getInputStream())));
+				
+				String etag = con.getHeaderField("ETag");
+				assertEquals(304, openGet("http://localhost:8090/test.txt", "Accept-Encoding: gzip", "If-None-Match: " + etag).getResponseCode());
+			}
+			{
+				HttpURLConnection con = openGet("http://localhost:8090/test.txt", "Accept-Encoding: gzip;q=0");
+				assertEquals(200, con.getResponseCode());
+				assertEquals(null, con.getHeaderField("Content-Encoding"));
+				assertEquals(expected.toString(), readAll(con.getInputStream()));
+			}
+			{
+				// The refused gzip isn't allowed by the wildcard
+				HttpURLConnection con = openGet("http://localhost:8090/test.txt", "Accept-Encoding: *, gzip;q=0");
+				assertEquals(200, con.getResponseCode());
+				assertEquals(null, con.getHeaderField("Content-Encoding"));
+				assertEquals(expected.toString(), readAll(con.getInputStream()));
+			}
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	private void rangeRequestTest(String testPrefix, String cacheSize) throws Exception {
+		JiggityServer srv = new JiggityServer();
+		try {
+			TestConf tstConf = createGitForServer(tmpDir, testPrefix);
+			
+			// 0123456789 + '\n'
+			addFileToGitIndex(tstConf.git, tstConf.gitDir, "test.bin", new String[] { "0123456789" });
+			tstConf.git.commit().setMessage("init").call();
+	
+			createConfFile(testPrefix, tstConf.rootDir, "<cache size=\"" + cacheSize + "\" />");
+			
+			srv.start(tstConf.rootDir);
+			
+			{
+				HttpURLConnection con = openGet("http://localhost:8090/test.bin", "Range: bytes=2-4");
+				assertEquals(206, con.getResponseCode());
+				assertEquals("bytes 2-4/11", con.getHeaderField("Content-Range"));
+				assertEquals("234", readAll(con.getInputStream()));
+			}
+			{
+				HttpURLConnection con = openGet("http://localhost:8090/test.bin", "Range: bytes=-3");
+				assertEquals(206, con.getResponseCode());
+				assertEquals("89\n", readAll(con.getInputStream()));
+			}
+			{
+				HttpURLConnection con = openGet("http://localhost:8090/test.bin", "Range: bytes=0-1,7-8");
+				assertEquals(206, con.getResponseCode());
+				assertTrue(con.getContentType().startsWith("multipart/byteranges"));
+				String body = readAll(con.getInputStream());
+				assertTrue(body.contains("Content-Range: bytes 0-1/11"));
+				assertTrue(body.contains("Content-Range: bytes 7-8/11"));
+				assertTrue(body.contains("\r\n01\r\n"));
+				assertTrue(body.contains("\r\n78\r\n"));
+			}
+			{
+				HttpURLConnection con = openGet("http://localhost:8090/test.bin", "Range: bytes=20-");
+				assertEquals(416, con.getResponseCode());
+				assertEquals("bytes */11", con.getHeaderField("Content-Range"));
+			}
+			{
+				String etag = openGet("http://localhost:8090/test.bin").getHeaderField("ETag");
+				HttpURLConnection con = openGet("http://localhost:8090/test.bin", "Range: bytes=2-4", "If-Range: " + etag);
+				assertEquals(206, con.getResponseCode());
+				
+				// The file has changed since the client got the first range, it receives the whole one
+				con = openGet("http://localhost:8090/test.bin", "Range: bytes=2-4", "If-Range: \"other\"");
+				assertEquals(200, con.getResponseCode());
+				assertEquals("0123456789\n", readAll(con.getInputStream()));
+			}
+		} finally {
+			srv.stop();
+		}
+	}
+	
+	@Test
+	public void cachedRangeRequestTest() throws Exception {
+		rangeRequestTest("cachedRangeRequestTest", "1m");
+	}
+	
+	@Test
+	public void streamedRangeRequestTest() throws Exception {
+		rangeRequestTest("streamedRangeRequestTest", "0");
+	}
+	
+	@Test
+	public void heapCachedRequestTest() throws Exception {
+		cachedRequestTest("heapCachedRequestTest", "heap");
+	}
+
+	@Test
+	public void directCachedRequestTest() throws Exception {
+		cachedRequestTest("directCachedRequestTest", "direct");
+	}
+	
+	@Test
+	public void mappedCachedRequestTest() throws Exception {
+		cachedRequestTest("mappedCachedRequestTest", "mapped");
+	}
+}
@@ -0,0 +1,411 @@
+package bfbc.jiggity.tests.load;
+
+import static bfbc.jiggity.tests.tools.Tools.addFileToGitIndex;
+import static bfbc.jiggity.tests.tools.Tools.createConfFile;
+import static bfbc.jiggity.tests.tools.Tools.createGitForServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bfbc.jiggity.JiggityServer;
+import bfbc.jiggity.tests.tools.TestConf;
+
+/**
+ * A load test of the whole server: builds a site repo with static files of mixed sizes, JGI scripts and processors,
+ * starts the server and requests it from many threads. A new commit is pushed in the middle of the run to see
+ * how long the clients wait while it's compiled and activated.
+ *
+ * Run it with <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=bfbc.jiggity.tests.load.LoadHarness
+ * -Dexec.args="files=1000 threads=32 seconds=60"</code>. The options (with the defaults):
+ * <ul>
+ * <li><code>files=200</code> &#151; the number of the static files (80% of 1 KB, 15% of 32 KB, 5% of 512 KB)</li>
+ * <li><code>scripts=10</code> &#151; the number of the JGI classes (scripts and processors in turn)</li>
+ * <li><code>threads=16</code> &#151; the number of the client threads</li>
+ * <li><code>seconds=20</code> &#151; the duration of the run</li>
+ * <li><code>push-at=10</code> &#151; the second the new commit is pushed at (<code>-1</code> not to push)</li>
+ * <li><code>server=</code> &#151; additional lines for the <code>&lt;server&gt;</code> tag of the configuration</li>
+ * </ul>
+ */
+public class LoadHarness {
+
+	private static Logger logger = LoggerFactory.getLogger(LoadHarness.class);
+
+	private static final String BASE_URL = "http://localhost:8090/";
+
+	private static final String[] KINDS = { "static", "script", "processor" };
+	private static final int STATIC = 0, SCRIPT = 1, PROCESSOR = 2;
+
+	private final int files;
+	private final int scripts;
+	private final int threads;
+	private final int seconds;
+	private final int pushAt;
+	private final String serverLines;
+
+	private TestConf conf;
+	private final List<String> targets = new ArrayList<>();
+	private final List<Integer> targetKinds = new ArrayList<>();
+
+	private volatile boolean running;
+	private long startNanos;
+
+	/**
+	 * The time the new commit was pushed at and the time its content was first served (nanoseconds from the start)
+	 */
+	private final AtomicLong pushedAt = new AtomicLong(-1);
+	private final AtomicLong servedAt = new AtomicLong(-1);
+
+	/**
+	 * Why the new commit couldn't be pushed or checked, if so
+	 */
+	private volatile Exception pushError;
+
+	/**
+	 * The requests made by a single client thread. They are merged when the run is over
+	 */
+	private static class Samples {
+		long[] startMillis = new long[1024];
+		long[] latencies = new long[1024];
+		byte[] kinds = new byte[1024];
+		int count;
+		long errors;
+
+		void add(long startMillis, long latency, int kind) {
+			if (count == latencies.length) {
+				this.startMillis = Arrays.copyOf(this.startMillis, count * 2);
+				latencies = Arrays.copyOf(latencies, count * 2);
+				kinds = Arrays.copyOf(kinds, count * 2);
+			}
+			this.startMillis[count] = startMillis;
+			latencies[count] = latency;
+			kinds[count] = (byte) kind;
+			count++;
+		}
+	}
+
+	public LoadHarness(Map<String, String> options) {
+		this.files = Integer.parseInt(option(options, "files", "200"));
+		this.scripts = Integer.parseInt(option(options, "scripts", "10"));
+		this.threads = Integer.parseInt(option(options, "threads", "16"));
+		this.seconds = Integer.parseInt(option(options, "seconds", "20"));
+		this.pushAt = Integer.parseInt(option(options, "push-at", "10"));
+		this.serverLines = option(options, "server", "");
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private static String[] staticContent(int size) {
+		String line = "<p>The static content of the synthetic site for the load test.</p>";
+		String[] lines = new String[Math.max(1, size / (line.length() + 1))];
+		Arrays.fill(lines, line);
+		return lines;
+	}
+
+	private static String[] script(int i, int version) {
+		return new String[] {
+			"import java.io.IOException;",
+			"import javax.servlet.http.*;",
+			"import bfbc.jiggity.api.JGIScript;",
+			"import bfbc.jiggity.api.exceptions.*;",
+			"public class Script" + i + " extends JGIScript {",
+			"	@Override",
+			"	public void onExecute(String target, HttpServletRequest request, HttpServletResponse response) throws JGIException {",
+			"		try {",
+			"			response.getOutputStream().println(\"script " + i + " v" + version + "\");",
+			"		} catch (IOException e) {",
+			"			throw new JGIServerException(JGIServerException.Code.INTERNAL_ERROR, e);",
+			"		}",
+			"	}",
+			"}"
+		};
+	}
+
+	private static String[] processor(int i, int version) {
+		return new String[] {
+			"import java.io.IOException;",
+			"import java.io.InputStream;",
+			"import javax.servlet.http.*;",
+			"import bfbc.jiggity.api.JGIProcessor;",
+			"import bfbc.jiggity.api.exceptions.*;",
+			"public class Processor" + i + " extends JGIProcessor {",
+			"	@Override",
+			"	public String[] getPatterns() { return new String[] { \"/proc/" + i + "/*\" }; }",
+			"	@Override",
+			"	public boolean onRequest(String target, InputStream fileStream, HttpServletRequest request, HttpServletResponse response) throws JGIException {",
+			"		try {",
+			"			response.getOutputStream().println(\"processor " + i + " v" + version + " \" + target);",
+			"		} catch (IOException e) {",
+			"			throw new JGIServerException(JGIServerException.Code.INTERNAL_ERROR, e);",
+			"		}",
+			"		return true;",
+			"	}",
+			"}"
+		};
+	}
+
+	private void addScripts(int version) throws Exception {
+		for (int i = 0; i < scripts; i++) {
+			if (i % 2 == 0) {
+				addFileToGitIndex(conf.git, conf.gitDir, "Script" + i + ".java", script(i, version));
+			} else {
+				addFileToGitIndex(conf.git, conf.gitDir, "Processor" + i + ".java", processor(i, version));
+			}
+		}
+	}
+
+	private void createSite(File tmpDir) throws Exception {
+		conf = createGitForServer(tmpDir, "load");
+		Random random = new Random(1);
+		for (int i = 0; i < files; i++) {
+			int p = random.nextInt(100);
+			int size = p < 80 ? 1024 : p < 95 ? 32 * 1024 : 512 * 1024;
+			addFileToGitIndex(conf.git, conf.gitDir, "static-" + i + ".html", staticContent(size));
+			targets.add("static-" + i + ".html");
+			targetKinds.add(STATIC);
+		}
+		addScripts(1);
+		for (int i = 0; i < scripts; i++) {
+			targets.add(i % 2 == 0 ? "Script" + i + ".java" : "proc/" + i + "/page");
+			targetKinds.add(i % 2 == 0 ? SCRIPT : PROCESSOR);
+		}
+		conf.git.commit().setMessage("version 1").call();
+		createConfFile("load", conf.rootDir, serverLines.isEmpty() ? new String[0] : new String[] { serverLines });
+	}
+
+	private static byte[] buffer() {
+		return new byte[64 * 1024];
+	}
+
+	/**
+	 * @return The response code. The body is read to the end, so the connection is kept alive
+	 */
+	private static int get(String url, byte[] buffer, StringBuilder text) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		int code = con.getResponseCode();
+		try (InputStream in = code < 400 ? con.getInputStream() : con.getErrorStream()) {
+			if (in == null) return code;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (text != null) text.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+			}
+		}
+		return code;
+	}
+
+	private Runnable client(final Samples samples, final long seed, final CountDownLatch done) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Random random = new Random(seed);
+				byte[] buffer = buffer();
+				try {
+					while (running) {
+						// 70% static files, the rest are split between the scripts and the processors
+						int index;
+						if (random.nextInt(100) < 70 || scripts == 0) {
+							index = random.nextInt(files);
+						} else {
+							index = files + random.nextInt(scripts);
+						}
+						long start = System.nanoTime();
+						try {
+							int code = get(BASE_URL + targets.get(index), buffer, null);
+							if (code != 200) samples.errors++;
+						} catch (IOException e) {
+							samples.errors++;
+						}
+						long end = System.nanoTime();
+						samples.add((start - startNanos) / 1000000, end - start, targetKinds.get(index));
+					}
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Pushes the new versions of the scripts and waits till the server serves them
+	 */
+	private Runnable pusher() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(pushAt * 1000L);
+					addScripts(2);
+					conf.git.commit().setMessage("version 2").call();
+					pushedAt.set(System.nanoTime() - startNanos);
+
+					byte[] buffer = buffer();
+					while (running) {
+						StringBuilder text = new StringBuilder();
+						get(BASE_URL + "Script0.java", buffer, text);
+						if (text.toString().contains("v2")) {
+							servedAt.set(System.nanoTime() - startNanos);
+							return;
+						}
+						Thread.sleep(5);
+					}
+				} catch (Exception e) {
+					logger.error("The new commit push has failed", e);
+					pushError = e;
+				}
+			}
+		};
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static String percentiles(long[] sorted) {
+		if (sorted.length == 0) return "no requests";
+		return String.format("p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f ms",
+				millis(sorted[(int) (sorted.length * 0.5)]), millis(sorted[(int) (sorted.length * 0.9)]),
+				millis(sorted[(int) (sorted.length * 0.99)]), millis(sorted[(int) (sorted.length * 0.999)]),
+				millis(sorted[sorted.length - 1]));
+	}
+
+	private void report(List<Samples> all, long elapsedNanos) {
+		int total = 0;
+		long errors = 0;
+		for (Samples s : all) {
+			total += s.count;
+			errors += s.errors;
+		}
+
+		long[] latencies = new long[total];
+		long[][] byKind = new long[KINDS.length][];
+		int[] kindCounts = new int[KINDS.length];
+		for (Samples s : all) {
+			for (int i = 0; i < s.count; i++) kindCounts[s.kinds[i]]++;
+		}
+		for (int k = 0; k < KINDS.length; k++) byKind[k] = new long[kindCounts[k]];
+
+		// Per second: the number of the requests and the maximum latency
+		int[] perSecond = new int[seconds + 1];
+		long[] maxPerSecond = new long[seconds + 1];
+		int n = 0;
+		int[] kindIndexes = new int[KINDS.length];
+		for (Samples s : all) {
+			for (int i = 0; i < s.count; i++) {
+				latencies[n++] = s.latencies[i];
+				byKind[s.kinds[i]][kindIndexes[s.kinds[i]]++] = s.latencies[i];
+				int second = (int) Math.min(seconds, s.startMillis[i] / 1000);
+				perSecond[second]++;
+				maxPerSecond[second] = Math.max(maxPerSecond[second], s.latencies[i]);
+			}
+		}
+		Arrays.sort(latencies);
+
+		System.out.println();
+		System.out.println(String.format("%d files, %d scripts, %d threads, %.1f s", files, scripts, threads, elapsedNanos / 1e9));
+		System.out.println(String.format("Requests: %d (%d errors), %.0f requests/s", total, errors, total / (elapsedNanos / 1e9)));
+		System.out.println("Latency: " + percentiles(latencies));
+		for (int k = 0; k < KINDS.length; k++) {
+			Arrays.sort(byKind[k]);
+			System.out.println("  " + KINDS[k] + " (" + byKind[k].length + "): " + percentiles(byKind[k]));
+		}
+
+		System.out.println("Timeline:");
+		for (int second = 0; second < seconds; second++) {
+			String mark = pushedAt.get() >= 0 && pushedAt.get() / 1000000000L == second ? "  <- new commit pushed" : "";
+			System.out.println(String.format("  %3d s: %6d requests, max %8.2f ms%s", second, perSecond[second], millis(maxPerSecond[second]), mark));
+		}
+
+		if (pushedAt.get() >= 0) {
+			if (servedAt.get() >= 0) {
+				System.out.println(String.format("New commit pushed at %.2f s, served after %.0f ms", pushedAt.get() / 1e9, millis(servedAt.get() - pushedAt.get())));
+			} else {
+				System.out.println(String.format("New commit pushed at %.2f s, not served till the end of the run", pushedAt.get() / 1e9));
+			}
+			// The stall: the slowest request started while the commit was being switched
+			long from = pushedAt.get() / 1000000;
+			long to = (servedAt.get() >= 0 ? servedAt.get() : elapsedNanos) / 1000000;
+			long stall = 0;
+			for (Samples s : all) {
+				for (int i = 0; i < s.count; i++) {
+					if (s.startMillis[i] >= from && s.startMillis[i] <= to) stall = Math.max(stall, s.latencies[i]);
+				}
+			}
+			System.out.println(String.format("Slowest request during the switch: %.2f ms", millis(stall)));
+		}
+		if (pushError != null) {
+			System.out.println("The new commit push has failed: " + pushError);
+		}
+	}
+
+	public void run() throws Exception {
+		File tmpDir = Files.createTempDirectory("jiggity-load-").toFile();
+		System.out.println("Creating the site in " + tmpDir);
+		createSite(tmpDir);
+
+		JiggityServer srv = new JiggityServer();
+		try {
+			srv.start(conf.rootDir);
+
+			List<Samples> all = new ArrayList<>();
+			CountDownLatch done = new CountDownLatch(threads);
+			running = true;
+			startNanos = System.nanoTime();
+			for (int i = 0; i < threads; i++) {
+				Samples samples = new Samples();
+				all.add(samples);
+				Thread thread = new Thread(client(samples, i, done), "load-client-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			if (pushAt >= 0 && pushAt < seconds) {
+				Thread thread = new Thread(pusher(), "load-pusher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			Thread.sleep(seconds * 1000L);
+			running = false;
+			done.await();
+			long elapsed = System.nanoTime() - startNanos;
+
+			report(all, elapsed);
+		} finally {
+			srv.stop();
+		}
+	}
+
+	/**
+	 * @param args the options as <code>name=value</code>
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq == -1) {
+				System.err.println("Options should be given as name=value: " + arg);
+				System.exit(1);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		new LoadHarness(options).run();
+		System.exit(0);
+	}
+}
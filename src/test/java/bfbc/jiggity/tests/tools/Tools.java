@@ -58,6 +58,22 @@ public class Tools {
 		}
 	}
 	
+	/**
+	 * Opens a GET connection with additional request headers (like <code>"Range: bytes=0-9"</code>)
+	 */
+	public static HttpURLConnection openGet(String url, String... headers) throws IOException {
+		URL obj = new URL(url);
+		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+		con.setRequestMethod("GET");
+		con.setRequestProperty("User-Agent", USER_AGENT);
+		for (String h : headers) {
+			int colon = h.indexOf(':');
+			con.setRequestProperty(h.substring(0, colon).trim(), h.substring(colon + 1).trim());
+		}
+		logger.info("Sending 'GET' request to URL : " + url);
+		return con;
+	}
+	
 	public static Response sendPost(String url, String urlParameters) throws Exception {
 
 		URL obj = new URL(url);
@@ -125,11 +141,25 @@ public class Tools {
 	}
 	
 	public static void createDefaultConfFile(String testPrefix, File rootDir) throws FileNotFoundException {
+		createConfFile(testPrefix, rootDir);
+	}
+	
+	/**
+	 * Creates the default configuration with additional lines inside the <code>&lt;server&gt;</code> tag
+	 */
+	public static void createConfFile(String testPrefix, File rootDir, String... serverLines) throws FileNotFoundException {
 		File testConfFile = new File(rootDir, CONF_FILE);
 		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(testConfFile)));
 		pw.println("<jiggity>");
 		pw.println("	<git path=\"../" + testPrefix + "-git/.git\" revision=\"master\" />");
 		pw.println("	<listen port=\"8090\" />");
+		if (serverLines.length > 0) {
+			pw.println("	<server>");
+			for (String l : serverLines) {
+				pw.println("		" + l);
+			}
+			pw.println("	</server>");
+		}
 		pw.println("</jiggity>");
 		pw.close();
 	}